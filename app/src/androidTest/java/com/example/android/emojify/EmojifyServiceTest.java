@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through {@link EmojifyService} with {@link EmojifyServiceClient}, on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmojifyServiceTest {
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private RecordingListener mListener;
+    private EmojifyServiceClient mClient;
+
+    @Before
+    public void bind() throws Exception {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mListener = new RecordingListener();
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mClient = new EmojifyServiceClient(mContext, mListener);
+                assertTrue(mClient.bind());
+            }
+        });
+
+        long deadline = SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(
+                TIMEOUT_SECONDS);
+        while (!isConnected()) {
+            assertTrue("Not connected to the service", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    @After
+    public void unbind() throws Exception {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mClient.unbind();
+            }
+        });
+    }
+
+    @Test
+    public void submitBytes_returnsAReadableResult() throws Exception {
+        final byte[] image = encodeJpeg(64, 48);
+        submit(new Submission() {
+            @Override
+            public int submit() {
+                return mClient.submit(image);
+            }
+        });
+
+        assertTrue(mListener.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(BatchingRequestQueue.Admission.ACCEPTED, mListener.admission);
+        assertNotNull("Failed: " + mListener.error, mListener.result);
+
+        InputStream in = mContext.getContentResolver().openInputStream(mListener.result);
+        Bitmap result;
+        try {
+            result = BitmapFactory.decodeStream(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(64, result.getWidth());
+        assertEquals(48, result.getHeight());
+        assertEquals(0, mListener.faces);
+    }
+
+    @Test
+    public void submitFileUri_isRefused() throws Exception {
+        // A file URI would let the client read any file of this app through the service
+        File file = new File(mContext.getCacheDir(), "service-test.jpg");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encodeJpeg(64, 48));
+        } finally {
+            out.close();
+        }
+        final Uri uri = Uri.fromFile(file);
+        submit(new Submission() {
+            @Override
+            public int submit() {
+                return mClient.submit(uri);
+            }
+        });
+
+        assertTrue(mListener.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(mListener.error);
+        assertEquals(null, mListener.result);
+        file.delete();
+    }
+
+    private interface Submission {
+        int submit();
+    }
+
+    private void submit(final Submission submission) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mListener.requestId = submission.submit();
+                assertTrue(mListener.requestId > 0);
+            }
+        });
+    }
+
+    private boolean isConnected() {
+        final boolean[] connected = new boolean[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                connected[0] = mClient.isConnected();
+            }
+        });
+        return connected[0];
+    }
+
+    private static byte[] encodeJpeg(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Keeps the replies to one request, all delivered on the main thread.
+     */
+    private static class RecordingListener implements EmojifyServiceClient.Listener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile int requestId;
+        volatile BatchingRequestQueue.Admission admission;
+        volatile Uri result;
+        volatile int faces;
+        volatile String error;
+
+        @Override
+        public void onAdmitted(int id, BatchingRequestQueue.Admission admission,
+                long backoffMillis) {
+            if (id == requestId) {
+                this.admission = admission;
+            }
+        }
+
+        @Override
+        public void onResult(int id, Uri result, int faces, long elapsedMillis) {
+            if (id == requestId) {
+                this.result = result;
+                this.faces = faces;
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onFailed(int id, String error) {
+            if (id == requestId) {
+                this.error = error;
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onStats(String stats) {
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emojifies many images without any UI, in parallel across the cores.
+ *
+ * Every worker runs the same decode, {@link Emojifier} and encode path as a single photo,
+ * with the one shared still image detector and emoji atlas. A semaphore caps the number of
+ * images in flight to what the {@link MemoryBudget} says the heap can hold, so memory stays
+ * flat no matter how large the batch is.
+ */
+class BatchEmojifier {
+
+    private static final String TAG = BatchEmojifier.class.getSimpleName();
+
+    // Images are resampled to fit this size before they are emojified
+    static final int MAX_DIMENSION = 2048;
+
+    // The most one image holds while in flight: a subsampled decode of less than twice the
+    // max dimension per side, and the resampled result
+    static final long BYTES_PER_IMAGE = (2L * MAX_DIMENSION) * (2L * MAX_DIMENSION) * 4
+            + (long) MAX_DIMENSION * MAX_DIMENSION * 4;
+
+    // At full resolution an image holds its detection preview and one decoded band
+    static final long BYTES_PER_LARGE_IMAGE = (long) LargeImageEmojifier.PREVIEW_MAX_DIMENSION
+            * LargeImageEmojifier.PREVIEW_MAX_DIMENSION * 4 + LargeImageEmojifier.BAND_BYTES;
+
+    private static final String OUTPUT_SUFFIX = "_emojified";
+
+    /**
+     * The outcome of a batch.
+     */
+    static class Report {
+
+        final int images;
+        final int failures;
+        final int faces;
+        final long elapsedMillis;
+
+        Report(int images, int failures, int faces, long elapsedMillis) {
+            this.images = images;
+            this.failures = failures;
+            this.faces = faces;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return The number of images emojified per second, failures included.
+         */
+        double imagesPerSecond() {
+            return elapsedMillis == 0 ? 0 : images * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d images (%d failed, %d faces) in %d ms, %.2f images/s",
+                    images, failures, faces, elapsedMillis, imagesPerSecond());
+        }
+    }
+
+    private final Context mContext;
+    private final File mOutputDir;
+    private final boolean mFullResolution;
+    private final DetectorPolicy.Hints mHints;
+    private final int mThreads;
+
+    /**
+     * @param context   The application context.
+     * @param outputDir The directory the emojified images are written to.
+     */
+    BatchEmojifier(Context context, File outputDir) {
+        this(context, outputDir, false, DetectorPolicy.Hints.DEFAULT);
+    }
+
+    /**
+     * @param context        The application context.
+     * @param outputDir      The directory the emojified images are written to.
+     * @param fullResolution True to keep the full resolution of the images, written as PNG
+     *                       by the {@link LargeImageEmojifier}.
+     * @param hints          What the caller knows about the faces in the images.
+     */
+    BatchEmojifier(Context context, File outputDir, boolean fullResolution,
+            DetectorPolicy.Hints hints) {
+        mContext = context.getApplicationContext();
+        mOutputDir = outputDir;
+        mFullResolution = fullResolution;
+        mHints = hints;
+        mThreads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Lists the images in a directory, in name order.
+     *
+     * @param directory The directory to scan, not recursively.
+     * @return The file URIs of the images.
+     */
+    static List<Uri> listImages(File directory) {
+        List<Uri> images = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return images;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")
+                    || name.endsWith(".png") || name.endsWith(".webp"))) {
+                images.add(Uri.fromFile(file));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Emojifies every image and blocks until all of them are written.
+     *
+     * @param images The file or content URIs of the images.
+     * @return The report of the batch.
+     */
+    Report run(List<Uri> images) {
+        if (!mOutputDir.exists() && !mOutputDir.mkdirs()) {
+            Log.e(TAG, "Could not create " + mOutputDir);
+            return new Report(images.size(), images.size(), 0, 0);
+        }
+
+        // The workers all pull from one queue, so a slow image never holds up the others
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "BatchEmojifier-" + mCount.incrementAndGet());
+            }
+        });
+        int maxInFlight = Math.min(mThreads, MemoryBudget.getInstance(mContext).imagesInFlight(
+                mFullResolution ? BYTES_PER_LARGE_IMAGE : BYTES_PER_IMAGE));
+        Log.d(TAG, "Emojifying " + images.size() + " images, " + maxInFlight + " at a time");
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicInteger faces = new AtomicInteger();
+
+        long start = SystemClock.elapsedRealtime();
+        List<Future<Boolean>> results = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            final Uri image = images.get(i);
+            final File output = new File(mOutputDir, outputName(image, i, mFullResolution));
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    inFlight.acquire();
+                    try {
+                        return emojify(image, output, faces);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            }));
+        }
+
+        int failures = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) {
+                    failures++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures++;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Batch image failed", e.getCause());
+                failures++;
+            }
+        }
+        executor.shutdown();
+
+        Report report = new Report(images.size(), failures, faces.get(),
+                SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Batch done: " + report);
+        return report;
+    }
+
+    /**
+     * Runs one image through the usual decode, detect, composite and encode path.
+     *
+     * @return True if the emojified image was written.
+     */
+    private boolean emojify(Uri image, File output, AtomicInteger faces) throws IOException {
+        if (mFullResolution) {
+            // Only one band of the image is decoded at a time
+            faces.addAndGet(LargeImageEmojifier.emojify(mContext, image, output, mHints).faces);
+            return true;
+        }
+
+        Bitmap picture = BitmapUtils.resamplePic(mContext, image, MAX_DIMENSION, MAX_DIMENSION);
+        if (picture == null) {
+            return false;
+        }
+        try {
+            List<DetectedFace> detected = Emojifier.detectFaces(mContext, picture, mHints);
+            faces.addAndGet(detected.size());
+
+            // The decoded picture is ours, so draw on it without a copy
+            Bitmap result = Emojifier.overlayEmoji(mContext, picture, detected,
+                    Emojifier.classify(mContext, detected), true);
+            ImageEncoder.encodeNow(result, output, ImageEncoder.DEFAULT_FORMAT,
+                    ImageEncoder.DEFAULT_QUALITY);
+            return true;
+        } finally {
+            picture.recycle();
+        }
+    }
+
+    /**
+     * Names the output after the input, with the index to keep names unique.
+     */
+    private static String outputName(Uri image, int index, boolean png) {
+        String name = image.getLastPathSegment();
+        if (name == null) {
+            name = "image";
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return String.format(Locale.US, "%s%s_%04d%s", name, OUTPUT_SUFFIX, index,
+                ImageEncoder.extensionOf(png ? Bitmap.CompressFormat.PNG
+                        : ImageEncoder.DEFAULT_FORMAT));
+    }
+}
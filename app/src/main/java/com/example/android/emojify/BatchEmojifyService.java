@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless entry point for {@link BatchEmojifier}. Start it from adb with either a directory
+ * or a comma separated list of gallery URIs:
+ * <pre>
+ * adb shell am startservice -n com.example.android.emojify/.BatchEmojifyService \
+ *     --es input_dir /sdcard/DCIM/Camera
+ * adb shell am startservice -n com.example.android.emojify/.BatchEmojifyService \
+ *     --esa input_uris content://media/external/images/media/12,file:///sdcard/a.jpg
+ * </pre>
+ * The emojified images are written to Pictures/Emojify/Batch unless output_dir is given.
+ * With {@code --ez full_resolution true} they keep their full size and are written as PNG.
+ * {@code --es face_count_hint single|few|many} tells the detector how many faces to expect
+ * and {@code --el latency_budget_ms 500} how long it may spend on each image.
+ */
+public class BatchEmojifyService extends IntentService {
+
+    private static final String TAG = BatchEmojifyService.class.getSimpleName();
+
+    static final String EXTRA_INPUT_DIR = "input_dir";
+    static final String EXTRA_INPUT_URIS = "input_uris";
+    static final String EXTRA_OUTPUT_DIR = "output_dir";
+    static final String EXTRA_FULL_RESOLUTION = "full_resolution";
+    static final String EXTRA_FACE_COUNT_HINT = DetectorPolicy.Hints.KEY_FACE_COUNT_HINT;
+    static final String EXTRA_LATENCY_BUDGET_MILLIS =
+            DetectorPolicy.Hints.KEY_LATENCY_BUDGET_MILLIS;
+
+    public BatchEmojifyService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) {
+            return;
+        }
+
+        List<Uri> images = inputUris(intent);
+        String inputDir = intent.getStringExtra(EXTRA_INPUT_DIR);
+        if (images == null && inputDir != null) {
+            images = BatchEmojifier.listImages(new File(inputDir));
+        }
+        if (images == null || images.isEmpty()) {
+            Log.w(TAG, "No images to emojify");
+            return;
+        }
+
+        String outputDir = intent.getStringExtra(EXTRA_OUTPUT_DIR);
+        File output = outputDir != null ? new File(outputDir) : new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
+                "Emojify/Batch");
+
+        Log.i(TAG, "Emojifying " + images.size() + " images into " + output);
+        boolean fullResolution = intent.getBooleanExtra(EXTRA_FULL_RESOLUTION, false);
+        DetectorPolicy.Hints hints = DetectorPolicy.Hints.from(intent.getExtras());
+        new BatchEmojifier(this, output, fullResolution, hints).run(images);
+    }
+
+    /**
+     * Reads the input URIs, sent as strings from adb or as a list of URIs from the app.
+     *
+     * @return The URIs, or null if none were given.
+     */
+    private static List<Uri> inputUris(Intent intent) {
+        String[] uriStrings = intent.getStringArrayExtra(EXTRA_INPUT_URIS);
+        if (uriStrings == null) {
+            return intent.getParcelableArrayListExtra(EXTRA_INPUT_URIS);
+        }
+        List<Uri> uris = new ArrayList<>(uriStrings.length);
+        for (String uriString : uriStrings) {
+            if (!uriString.trim().isEmpty()) {
+                uris.add(Uri.parse(uriString.trim()));
+            }
+        }
+        return uris;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue between the clients of the {@link EmojifyService} and its worker, which
+ * takes requests in batches.
+ *
+ * Admission is the backpressure signal: past the high watermark a request is still queued
+ * but reported as {@link Admission#BUSY} so the client slows down, and a full queue
+ * {@link Admission#REJECTED rejects} it outright. The queue also keeps the numbers needed
+ * to size it: depth, time spent waiting, batch sizes and throughput. Plain Java, so it is
+ * tested on the host.
+ *
+ * @param <T> The type of the requests.
+ */
+class BatchingRequestQueue<T> {
+
+    /**
+     * How a request was admitted.
+     */
+    enum Admission {
+        ACCEPTED,
+        BUSY,
+        REJECTED
+    }
+
+    /**
+     * Source of the timestamps behind the wait time and throughput metrics.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static class Entry<T> {
+
+        final T request;
+        final long enqueuedNanos;
+
+        Entry(T request, long enqueuedNanos) {
+            this.request = request;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final int mCapacity;
+    private final int mHighWatermark;
+    private final Clock mClock;
+    private final ArrayDeque<Entry<T>> mQueue;
+    private boolean mClosed;
+
+    private final EmojifyMetrics.Histogram mWaitMillis = new EmojifyMetrics.Histogram();
+    private long mStartNanos = -1;
+    private int mMaxDepth;
+    private long mAccepted;
+    private long mBusy;
+    private long mRejected;
+    private long mBatches;
+    private long mCompleted;
+    private long mServiceNanos;
+
+    /**
+     * @param capacity      The most requests that can wait at once.
+     * @param highWatermark The depth from which new requests are answered with
+     *                      {@link Admission#BUSY}.
+     * @param clock         The time source of the metrics.
+     */
+    BatchingRequestQueue(int capacity, int highWatermark, Clock clock) {
+        if (capacity < 1 || highWatermark < 1 || highWatermark > capacity) {
+            throw new IllegalArgumentException("capacity=" + capacity
+                    + ", highWatermark=" + highWatermark);
+        }
+        mCapacity = capacity;
+        mHighWatermark = highWatermark;
+        mClock = clock;
+        mQueue = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queues a request unless the queue is full or closed.
+     *
+     * @param request The request.
+     * @return Whether it was queued, and if so whether the client should slow down.
+     */
+    synchronized Admission offer(T request) {
+        if (mClosed || mQueue.size() >= mCapacity) {
+            mRejected++;
+            return Admission.REJECTED;
+        }
+        long now = mClock.nanoTime();
+        if (mStartNanos < 0) {
+            mStartNanos = now;
+        }
+        mQueue.addLast(new Entry<>(request, now));
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        mAccepted++;
+        notifyAll();
+
+        if (mQueue.size() > mHighWatermark) {
+            mBusy++;
+            return Admission.BUSY;
+        }
+        return Admission.ACCEPTED;
+    }
+
+    /**
+     * Waits for the next batch of requests, oldest first. Once a request is waiting, the
+     * batch lingers a little for more to arrive, so bursts are handled together.
+     *
+     * @param maxBatch     The most requests to return.
+     * @param lingerMillis How long to wait for a batch to fill, in real time.
+     * @return The batch, empty only once the queue is closed and drained.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    synchronized List<T> takeBatch(int maxBatch, long lingerMillis)
+            throws InterruptedException {
+        while (mQueue.isEmpty() && !mClosed) {
+            wait();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (mQueue.size() < maxBatch && !mClosed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        int size = Math.min(maxBatch, mQueue.size());
+        List<T> batch = new ArrayList<>(size);
+        long now = mClock.nanoTime();
+        for (int i = 0; i < size; i++) {
+            Entry<T> entry = mQueue.removeFirst();
+            mWaitMillis.record(TimeUnit.NANOSECONDS.toMillis(now - entry.enqueuedNanos));
+            batch.add(entry.request);
+        }
+        if (size > 0) {
+            mBatches++;
+        }
+        return batch;
+    }
+
+    /**
+     * Records that a batch taken from the queue was processed.
+     *
+     * @param count        The number of requests in the batch.
+     * @param serviceNanos How long processing the batch took.
+     */
+    synchronized void onBatchDone(int count, long serviceNanos) {
+        mCompleted += count;
+        mServiceNanos += serviceNanos;
+    }
+
+    /**
+     * Estimates how long the requests already queued will take, which is how long a client
+     * should back off after a rejection.
+     *
+     * @return The estimate in milliseconds, 0 before any request was processed.
+     */
+    synchronized long estimatedDrainMillis() {
+        if (mCompleted == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mServiceNanos / mCompleted * mQueue.size());
+    }
+
+    /**
+     * Stops accepting requests. Queued requests are still handed out, then
+     * {@link #takeBatch} returns an empty batch.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Removes the requests still queued, so they can be answered when the consumer stops.
+     *
+     * @return The requests, oldest first.
+     */
+    synchronized List<T> drain() {
+        List<T> requests = new ArrayList<>(mQueue.size());
+        for (Entry<T> entry : mQueue) {
+            requests.add(entry.request);
+        }
+        mQueue.clear();
+        return requests;
+    }
+
+    synchronized int depth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return A snapshot of the metrics.
+     */
+    synchronized Stats stats() {
+        long elapsedNanos = mStartNanos < 0 ? 0 : mClock.nanoTime() - mStartNanos;
+        return new Stats(mQueue.size(), mMaxDepth, mAccepted, mBusy, mRejected, mBatches,
+                mCompleted, mWaitMillis.percentile(50), mWaitMillis.percentile(95),
+                mCompleted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mServiceNanos / mCompleted),
+                elapsedNanos == 0 ? 0 : mCompleted * 1e9 / elapsedNanos);
+    }
+
+    /**
+     * The metrics of a queue at one point in time.
+     */
+    static class Stats {
+
+        final int depth;
+        final int maxDepth;
+        final long accepted;
+        final long busy;
+        final long rejected;
+        final long batches;
+        final long completed;
+        final long waitMillisP50;
+        final long waitMillisP95;
+        final long serviceMillisPerRequest;
+        final double requestsPerSecond;
+
+        Stats(int depth, int maxDepth, long accepted, long busy, long rejected, long batches,
+                long completed, long waitMillisP50, long waitMillisP95,
+                long serviceMillisPerRequest, double requestsPerSecond) {
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.accepted = accepted;
+            this.busy = busy;
+            this.rejected = rejected;
+            this.batches = batches;
+            this.completed = completed;
+            this.waitMillisP50 = waitMillisP50;
+            this.waitMillisP95 = waitMillisP95;
+            this.serviceMillisPerRequest = serviceMillisPerRequest;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        /**
+         * @return The mean number of requests per batch.
+         */
+        double meanBatchSize() {
+            return batches == 0 ? 0 : (double) (accepted - depth) / batches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "depth=%d (max %d), accepted=%d, busy=%d, "
+                            + "rejected=%d, batches=%d (mean %.1f), completed=%d, "
+                            + "wait p50=%d ms p95=%d ms, service=%d ms, %.2f requests/s",
+                    depth, maxDepth, accepted, busy, rejected, batches, meanBatchSize(),
+                    completed, waitMillisP50, waitMillisP95, serviceMillisPerRequest,
+                    requestsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A small pool of mutable bitmaps whose memory can be reused by the decoder through
+ * {@link BitmapFactory.Options#inBitmap}, so consecutive captures do not each allocate a
+ * fresh decode buffer. Bitmaps over a size cap are not kept, so the pool never pins a
+ * full resolution decode between images.
+ */
+class BitmapPool {
+
+    // Decode buffers are large, only keep a few around
+    private static final int DEFAULT_MAX_POOLED_BITMAPS = 2;
+
+    private static final LinkedList<Bitmap> sPool = new LinkedList<>();
+
+    private static int sMaxPooledBitmaps = DEFAULT_MAX_POOLED_BITMAPS;
+
+    private static long sMaxBitmapBytes = Long.MAX_VALUE;
+
+    /**
+     * Sets how many bitmaps the pool keeps, dropping the oldest ones past it.
+     *
+     * @param maxPooledBitmaps The new capacity, 0 disables pooling.
+     */
+    static synchronized void setMaxSize(int maxPooledBitmaps) {
+        sMaxPooledBitmaps = maxPooledBitmaps;
+        trim();
+    }
+
+    static synchronized int getMaxSize() {
+        return sMaxPooledBitmaps;
+    }
+
+    /**
+     * Sets the size of the largest bitmap the pool keeps, dropping the pooled ones past it.
+     *
+     * @param maxBitmapBytes The cap, in bytes of allocation.
+     */
+    static synchronized void setMaxBitmapBytes(long maxBitmapBytes) {
+        sMaxBitmapBytes = maxBitmapBytes;
+        Iterator<Bitmap> iterator = sPool.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (!fitsCap(bitmap)) {
+                iterator.remove();
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Offers a bitmap to the pool. The caller must not use the bitmap afterwards.
+     *
+     * @param bitmap The bitmap that is no longer needed.
+     */
+    static synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (!fitsCap(bitmap)) {
+            // Too large to keep around between images
+            bitmap.recycle();
+            return;
+        }
+        sPool.addFirst(bitmap);
+        trim();
+    }
+
+    private static boolean fitsCap(Bitmap bitmap) {
+        return bitmap.getByteCount() <= sMaxBitmapBytes;
+    }
+
+    private static void trim() {
+        while (sPool.size() > sMaxPooledBitmaps) {
+            sPool.removeLast().recycle();
+        }
+    }
+
+    /**
+     * Removes and returns a pooled bitmap the decoder can reuse for the given options, which
+     * must already have their bounds and sample size filled in.
+     *
+     * @param options The options of the upcoming decode.
+     * @return A reusable bitmap, or null if none fits.
+     */
+    static synchronized Bitmap getReusable(BitmapFactory.Options options) {
+        Iterator<Bitmap> iterator = sPool.iterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (canUseForInBitmap(candidate, options)) {
+                iterator.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    static synchronized void clear() {
+        for (Bitmap bitmap : sPool) {
+            bitmap.recycle();
+        }
+        sPool.clear();
+    }
+
+    /**
+     * @return The number of bytes held by the pool.
+     */
+    static synchronized long sizeInBytes() {
+        long bytes = 0;
+        for (Bitmap bitmap : sPool) {
+            bytes += bitmap.getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks the inBitmap rules: from KitKat any bitmap that is big enough can be reused,
+     * before that only one of exactly the same size and without subsampling.
+     */
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int bytesPerPixel = bytesPerPixel(options.inPreferredConfig != null
+                    ? options.inPreferredConfig : candidate.getConfig());
+            return width * height * bytesPerPixel <= candidate.getAllocationByteCount();
+        }
+
+        return sampleSize == 1
+                && candidate.getWidth() == width
+                && candidate.getHeight() == height;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -22,22 +22,47 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.content.FileProvider;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.WindowManager;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.Future;
 
 class BitmapUtils {
 
-    private static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
+    private static final String TAG = BitmapUtils.class.getSimpleName();
+
+    static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
+
+    // Captured photos, in the app's private cache and shared through the file provider
+    static final String CAPTURE_DIRECTORY = "captures";
+
+    // A capture this old is no longer referenced by any saved activity state worth restoring
+    static final long CAPTURE_TTL_MILLIS = 24 * 60 * 60 * 1000;
+
+    // Prefix of the captures written to the external cache by earlier versions
+    private static final String LEGACY_CAPTURE_PREFIX = "JPEG_";
+
+    // SimpleDateFormat is not thread safe, so each thread keeps its own
+    private static final ThreadLocal<SimpleDateFormat> TIME_STAMP_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+                }
+            };
 
 
     /**
@@ -54,37 +79,249 @@ class BitmapUtils {
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         manager.getDefaultDisplay().getMetrics(metrics);
 
-        int targetH = metrics.heightPixels;
-        int targetW = metrics.widthPixels;
+        // Low memory devices get a smaller preview in a 16 bit config
+        MemoryBudget budget = MemoryBudget.getInstance(context);
+        int[] target = budget.fitPreview(metrics.widthPixels, metrics.heightPixels);
+        return resamplePic(imagePath, target[0], target[1], budget.previewConfig());
+    }
+
+    /**
+     * Resamples a photo so it fits inside the target size. The decoder subsamples by the
+     * largest power of two that keeps the photo at least as big as the target, then the
+     * result is scaled down exactly. Photos smaller than the target are not scaled up.
+     *
+     * @param imagePath The path of the photo to be resampled.
+     * @param targetW   The maximum width of the result.
+     * @param targetH   The maximum height of the result.
+     * @return The resampled, mutable bitmap, or null if the photo cannot be decoded.
+     */
+    static Bitmap resamplePic(final String imagePath, int targetW, int targetH) {
+        return resamplePic(imagePath, targetW, targetH, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Resamples a photo so it fits inside the target size, in the given config.
+     *
+     * @param imagePath The path of the photo to be resampled.
+     * @param targetW   The maximum width of the result.
+     * @param targetH   The maximum height of the result.
+     * @param config    The config of the result.
+     * @return The resampled, mutable bitmap, or null if the photo cannot be decoded.
+     */
+    static Bitmap resamplePic(final String imagePath, int targetW, int targetH,
+            Bitmap.Config config) {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(imagePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Could not open " + imagePath, e);
+            return null;
+        }
+        try {
+            // Both passes read the one open descriptor instead of opening the file twice
+            return resample(in.getFD(), imagePath, targetW, targetH, config);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + imagePath, e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close " + imagePath, e);
+            }
+        }
+    }
+
+    /**
+     * Resamples a photo behind a file or content URI so it fits inside the target size.
+     * Content URIs are decoded straight from their file descriptor.
+     *
+     * @param context The application context.
+     * @param uri     The URI of the photo to be resampled.
+     * @param targetW The maximum width of the result.
+     * @param targetH The maximum height of the result.
+     * @return The resampled, mutable bitmap, or null if the photo cannot be decoded.
+     * @see #resamplePic(String, int, int)
+     */
+    static Bitmap resamplePic(Context context, Uri uri, int targetW, int targetH) {
+        if ("file".equals(uri.getScheme())) {
+            return resamplePic(uri.getPath(), targetW, targetH);
+        }
+
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                Log.e(TAG, "No file descriptor for " + uri);
+                return null;
+            }
+            return resample(descriptor.getFileDescriptor(), uri, targetW, targetH,
+                    Bitmap.Config.ARGB_8888);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Could not open " + uri, e);
+            return null;
+        } finally {
+            // ParcelFileDescriptor is only Closeable from API 16, so close it directly
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close " + uri, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the size of a photo without decoding its pixels.
+     *
+     * @param context The application context.
+     * @param uri     The file or content URI of the photo.
+     * @return The width and height of the photo.
+     * @throws IOException If the photo cannot be read.
+     */
+    static int[] decodeBounds(Context context, Uri uri) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Could not read the bounds of " + uri);
+        }
+        return new int[] {options.outWidth, options.outHeight};
+    }
+
+    /**
+     * Resamples the photo behind an open descriptor.
+     */
+    private static Bitmap resample(final FileDescriptor descriptor, final Object name,
+            int targetW, int targetH, Bitmap.Config config) {
+        // The decoder restores the descriptor's offset, so both passes read the same data
+        return resample(new EncodedImage() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(descriptor, null, options);
+            }
+
+            @Override
+            public String toString() {
+                return name.toString();
+            }
+        }, targetW, targetH, config);
+    }
+
+    /**
+     * An encoded image that can be decoded more than once.
+     */
+    private interface EncodedImage {
+
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private static Bitmap resample(EncodedImage image, int targetW, int targetH,
+            Bitmap.Config config) {
+        long start = EmojifyMetrics.begin();
 
         // Get the dimensions of the original bitmap
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
         bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(imagePath, bmOptions);
+        image.decode(bmOptions);
         int photoW = bmOptions.outWidth;
         int photoH = bmOptions.outHeight;
+        if (photoW <= 0 || photoH <= 0) {
+            Log.e(TAG, "Could not read the bounds of " + image);
+            return null;
+        }
 
-        // Determine how much to scale down the image
-        int scaleFactor = Math.min(photoW / targetW, photoH / targetH);
+        // Determine the exact size that fits the target
+        float scale = Math.min(1f, Math.min((float) targetW / photoW, (float) targetH / photoH));
+        int finalW = Math.max(1, Math.round(photoW * scale));
+        int finalH = Math.max(1, Math.round(photoH * scale));
 
-        // Decode the image file into a Bitmap sized to fill the View
+        // Decode the image file, subsampled and into a pooled buffer when one fits
         bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
+        bmOptions.inSampleSize = calculateInSampleSize(photoW, photoH, finalW, finalH);
+        bmOptions.inMutable = true;
+        bmOptions.inPreferredConfig = config;
+        bmOptions.inBitmap = BitmapPool.getReusable(bmOptions);
+        boolean reused = bmOptions.inBitmap != null;
+
+        Bitmap decoded;
+        try {
+            decoded = image.decode(bmOptions);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused after all, decode into a new one
+            Log.w(TAG, "Could not reuse pooled bitmap", e);
+            reused = false;
+            bmOptions.inBitmap = null;
+            decoded = image.decode(bmOptions);
+        }
+        if (decoded == null) {
+            Log.e(TAG, "Could not decode " + image);
+            return null;
+        }
+
+        long allocatedBytes = reused ? 0 : decoded.getByteCount();
+
+        // Scale down to the exact size, the subsampled buffer can then serve the next photo
+        Bitmap result = decoded;
+        if (decoded.getWidth() != finalW || decoded.getHeight() != finalH) {
+            result = Bitmap.createScaledBitmap(decoded, finalW, finalH, true);
+            if (result != decoded) {
+                allocatedBytes += result.getByteCount();
+                BitmapPool.put(decoded);
+            }
+        }
 
-        return BitmapFactory.decodeFile(imagePath);
+        EmojifyMetrics.end(EmojifyMetrics.Stage.DECODE, start, allocatedBytes);
+
+        Log.d(TAG, "Resampled " + photoW + "x" + photoH
+                + " to " + result.getWidth() + "x" + result.getHeight()
+                + " (inSampleSize=" + bmOptions.inSampleSize + ", reused=" + reused + "): "
+                + result.getByteCount() + " bytes instead of " + (photoW * photoH * 4L));
+
+        return result;
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps the decoded image at least
+     * as large as the requested size.
+     *
+     * @param photoW The width of the photo.
+     * @param photoH The height of the photo.
+     * @param reqW   The requested width.
+     * @param reqH   The requested height.
+     * @return The sample size, at least 1.
+     */
+    static int calculateInSampleSize(int photoW, int photoH, int reqW, int reqH) {
+        int inSampleSize = 1;
+        while (photoW / (inSampleSize * 2) >= reqW && photoH / (inSampleSize * 2) >= reqH) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
     }
 
     /**
-     * Creates the temporary image file in the cache directory.
+     * Creates the temporary image file in the app's private cache directory. Other apps, such
+     * as the camera, can only write to it through {@link #getCaptureUri(Context, File)}.
      *
      * @return The temporary image file.
      * @throws IOException Thrown if there is an error creating the file
      */
     static File createTempImageFile(Context context) throws IOException {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
-                Locale.getDefault()).format(new Date());
+        String timeStamp = TIME_STAMP_FORMAT.get().format(new Date());
         String imageFileName = "JPEG_" + timeStamp + "_";
-        File storageDir = context.getExternalCacheDir();
+        File storageDir = new File(context.getCacheDir(), CAPTURE_DIRECTORY);
+        if (!storageDir.isDirectory() && !storageDir.mkdirs()) {
+            throw new IOException("Could not create " + storageDir);
+        }
 
         return File.createTempFile(
                 imageFileName,  /* prefix */
@@ -93,6 +330,66 @@ class BitmapUtils {
         );
     }
 
+    /**
+     * @return The content URI through which other apps can write a temporary image file.
+     */
+    static Uri getCaptureUri(Context context, File imageFile) {
+        return FileProvider.getUriForFile(context, FILE_PROVIDER_AUTHORITY, imageFile);
+    }
+
+    /**
+     * Deletes the temporary files left behind when the app died before it could clean up:
+     * captures and full resolution exports older than {@link #CAPTURE_TTL_MILLIS}, and every
+     * capture earlier versions wrote to the external cache. Does disk I/O, so call it off the
+     * main thread.
+     *
+     * @param context The application context.
+     */
+    static void deleteOrphanedTempFiles(Context context) {
+        File cacheDir = context.getCacheDir();
+        int deleted = deleteExpiredFiles(new File(cacheDir, CAPTURE_DIRECTORY),
+                CAPTURE_TTL_MILLIS);
+        deleted += deleteExpiredFiles(new File(cacheDir, FullResolutionExporter.EXPORT_DIRECTORY),
+                CAPTURE_TTL_MILLIS);
+
+        File externalCacheDir = context.getExternalCacheDir();
+        File[] legacyFiles = externalCacheDir != null ? externalCacheDir.listFiles() : null;
+        if (legacyFiles != null) {
+            for (File file : legacyFiles) {
+                if (file.getName().startsWith(LEGACY_CAPTURE_PREFIX) && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        Log.d(TAG, "Deleted " + deleted + " orphaned temporary files");
+    }
+
+    /**
+     * Deletes the files of a directory that are older than a maximum age.
+     *
+     * @param directory    The directory, which may not exist.
+     * @param maxAgeMillis The age from which files are deleted, 0 to delete them all.
+     * @return The number of files deleted.
+     */
+    static int deleteExpiredFiles(File directory, long maxAgeMillis) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() <= cutoff) {
+                if (file.delete()) {
+                    deleted++;
+                } else {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        return deleted;
+    }
+
     /**
      * Deletes image file for a given path.
      *
@@ -131,20 +428,79 @@ class BitmapUtils {
 
 
     /**
-     * Helper method for saving the image.
+     * Helper method for saving the image with the default format and quality.
      *
-     * @param context The application context.
-     * @param image   The image to be saved.
-     * @return The path of the saved image.
+     * @param context  The application context.
+     * @param image    The image to be saved. It must not be modified until the save is done.
+     * @param listener Notified on the main thread after the image is saved, may be null.
+     * @return The pending save, or null if the storage directory could not be created.
+     */
+    static Future<ImageEncoder.EncodeResult> saveImage(Context context, Bitmap image,
+            ImageEncoder.Listener listener) {
+        return saveImage(context, image, ImageEncoder.DEFAULT_FORMAT,
+                ImageEncoder.DEFAULT_QUALITY, listener);
+    }
+
+    /**
+     * Helper method for saving the image. The image is encoded in the background, then added
+     * to the gallery and the save location is shown in a Toast.
+     *
+     * @param context  The application context.
+     * @param image    The image to be saved. It must not be modified until the save is done.
+     * @param format   The compression format.
+     * @param quality  The compression quality, 0-100.
+     * @param listener Notified on the main thread after the image is saved, may be null.
+     * @return The pending save, or null if the storage directory could not be created.
      */
-    static String saveImage(Context context, Bitmap image) {
+    static Future<ImageEncoder.EncodeResult> saveImage(Context context, Bitmap image,
+            Bitmap.CompressFormat format, int quality, ImageEncoder.Listener listener) {
+
+        Context appContext = context.getApplicationContext();
+        File imageFile = createGalleryFile(appContext, format, listener);
+        if (imageFile == null) {
+            return null;
+        }
 
-        String savedImagePath = null;
+        // Save the new Bitmap
+        return ImageEncoder.encode(image, imageFile, format, quality,
+                galleryListener(appContext, listener));
+    }
+
+    /**
+     * Helper method for saving an image that is already encoded, such as a full resolution
+     * export. The file is copied in the background, then added to the gallery and the save
+     * location is shown in a Toast.
+     *
+     * @param context  The application context.
+     * @param encoded  The encoded image, which is left in place.
+     * @param format   The format the image is encoded in.
+     * @param listener Notified on the main thread after the image is saved, may be null.
+     * @return The pending save, or null if the storage directory could not be created.
+     */
+    static Future<ImageEncoder.EncodeResult> saveImage(Context context, File encoded,
+            Bitmap.CompressFormat format, ImageEncoder.Listener listener) {
 
+        Context appContext = context.getApplicationContext();
+        File imageFile = createGalleryFile(appContext, format, listener);
+        if (imageFile == null) {
+            return null;
+        }
+        return ImageEncoder.copy(encoded, imageFile, format,
+                galleryListener(appContext, listener));
+    }
+
+    /**
+     * Names a new file in the Emojify pictures directory, creating the directory if needed.
+     *
+     * @return The file, or null if the directory could not be created, in which case the
+     * listener has been told.
+     */
+    private static File createGalleryFile(Context appContext, Bitmap.CompressFormat format,
+            ImageEncoder.Listener listener) {
         // Create the new file in the external storage
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
-                Locale.getDefault()).format(new Date());
-        String imageFileName = "JPEG_" + timeStamp + ".jpg";
+        String timeStamp = TIME_STAMP_FORMAT.get().format(new Date());
+        String imageFileName = format.name() + "_" + timeStamp
+                + ImageEncoder.extensionOf(format);
         File storageDir = new File(
                 Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
                         + "/Emojify");
@@ -153,31 +509,49 @@ class BitmapUtils {
             success = storageDir.mkdirs();
         }
 
-        // Save the new Bitmap
-        if (success) {
-            File imageFile = new File(storageDir, imageFileName);
-            savedImagePath = imageFile.getAbsolutePath();
-            try {
-                OutputStream fOut = new FileOutputStream(imageFile);
-                image.compress(Bitmap.CompressFormat.JPEG, 100, fOut);
-                fOut.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+        if (!success) {
+            Toast.makeText(appContext, R.string.not_saved, Toast.LENGTH_SHORT).show();
+            if (listener != null) {
+                listener.onEncodeFailed(new IOException("Could not create " + storageDir));
             }
+            return null;
+        }
+        return new File(storageDir, imageFileName);
+    }
 
-            // Add the image to the system gallery
-            galleryAddPic(context, savedImagePath);
+    /**
+     * Wraps a save listener to add the saved image to the gallery and show where it is.
+     */
+    private static ImageEncoder.Listener galleryListener(final Context appContext,
+            final ImageEncoder.Listener listener) {
+        return new ImageEncoder.Listener() {
+            @Override
+            public void onEncoded(ImageEncoder.EncodeResult result) {
+                // Add the image to the system gallery
+                galleryAddPic(appContext, result.path);
 
-            // Show a Toast with the save location
-            String savedMessage = context.getString(R.string.saved_message, savedImagePath);
-            Toast.makeText(context, savedMessage, Toast.LENGTH_SHORT).show();
-        }
+                // Show a Toast with the save location
+                String savedMessage = appContext.getString(R.string.saved_message, result.path);
+                Toast.makeText(appContext, savedMessage, Toast.LENGTH_SHORT).show();
 
-        return savedImagePath;
+                if (listener != null) {
+                    listener.onEncoded(result);
+                }
+            }
+
+            @Override
+            public void onEncodeFailed(Exception e) {
+                Toast.makeText(appContext, R.string.not_saved, Toast.LENGTH_SHORT).show();
+
+                if (listener != null) {
+                    listener.onEncodeFailed(e);
+                }
+            }
+        };
     }
 
     /**
-     * Helper method for sharing an image.
+     * Helper method for sharing an image that is already encoded on disk.
      *
      * @param context   The image context.
      * @param imagePath The path of the image to be shared.
@@ -189,6 +563,7 @@ class BitmapUtils {
         shareIntent.setType("image/*");
         Uri photoURI = FileProvider.getUriForFile(context, FILE_PROVIDER_AUTHORITY, imageFile);
         shareIntent.putExtra(Intent.EXTRA_STREAM, photoURI);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         context.startActivity(shareIntent);
     }
 }
@@ -0,0 +1,148 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.android.gms.common.images.Size;
+import com.google.android.gms.vision.CameraSource;
+
+import java.io.IOException;
+
+/**
+ * Shows the frames of a {@link CameraSource} in a {@link SurfaceView}, scaled to fit with
+ * their aspect ratio kept. Every other child, such as the {@link EmojiOverlayView}, is laid
+ * out over the same area as the preview.
+ */
+public class CameraSourcePreview extends ViewGroup {
+
+    private static final String TAG = CameraSourcePreview.class.getSimpleName();
+
+    private final SurfaceView mSurfaceView;
+
+    private CameraSource mCameraSource;
+    private boolean mStartRequested;
+    private boolean mSurfaceAvailable;
+
+    public CameraSourcePreview(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mSurfaceView = new SurfaceView(context);
+        mSurfaceView.getHolder().addCallback(new SurfaceCallback());
+        addView(mSurfaceView);
+    }
+
+    /**
+     * Starts the camera as soon as the preview surface is ready.
+     *
+     * @param cameraSource The camera to show.
+     * @throws IOException If the camera could not be started.
+     */
+    void start(CameraSource cameraSource) throws IOException {
+        mCameraSource = cameraSource;
+        mStartRequested = true;
+        startIfReady();
+    }
+
+    /**
+     * Stops the camera. It can be started again with {@link #start(CameraSource)}.
+     */
+    void stop() {
+        mStartRequested = false;
+        if (mCameraSource != null) {
+            mCameraSource.stop();
+        }
+    }
+
+    private void startIfReady() throws IOException {
+        if (mStartRequested && mSurfaceAvailable) {
+            mCameraSource.start(mSurfaceView.getHolder());
+            mStartRequested = false;
+            requestLayout();
+        }
+    }
+
+    private class SurfaceCallback implements SurfaceHolder.Callback {
+
+        @Override
+        public void surfaceCreated(SurfaceHolder surface) {
+            mSurfaceAvailable = true;
+            try {
+                startIfReady();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start camera source", e);
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder surface) {
+            mSurfaceAvailable = false;
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        int viewWidth = right - left;
+        int viewHeight = bottom - top;
+
+        // Default to the common 4:3 preview until the camera reports its size
+        int previewWidth = 640;
+        int previewHeight = 480;
+        if (mCameraSource != null) {
+            Size size = mCameraSource.getPreviewSize();
+            if (size != null) {
+                previewWidth = size.getWidth();
+                previewHeight = size.getHeight();
+            }
+        }
+
+        // The camera reports landscape sizes, swap them when the screen is in portrait
+        if (isPortrait()) {
+            int swap = previewWidth;
+            previewWidth = previewHeight;
+            previewHeight = swap;
+        }
+
+        // Fit the preview into the view, centered
+        float scale = Math.min((float) viewWidth / previewWidth,
+                (float) viewHeight / previewHeight);
+        int childWidth = Math.round(previewWidth * scale);
+        int childHeight = Math.round(previewHeight * scale);
+        int childLeft = (viewWidth - childWidth) / 2;
+        int childTop = (viewHeight - childHeight) / 2;
+
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            child.layout(childLeft, childTop, childLeft + childWidth, childTop + childHeight);
+        }
+    }
+
+    private boolean isPortrait() {
+        return getContext().getResources().getConfiguration().orientation
+                == Configuration.ORIENTATION_PORTRAIT;
+    }
+}
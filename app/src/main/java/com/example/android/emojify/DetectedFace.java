@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import com.google.android.gms.vision.face.Face;
+
+/**
+ * An immutable snapshot of a detected {@link Face}: its bounds and the classification
+ * probabilities used to pick an emoji. Unlike a {@link Face}, it can be handed between
+ * threads and kept after the detector has moved on.
+ */
+class DetectedFace {
+
+    final int id;
+    final float left;
+    final float top;
+    final float width;
+    final float height;
+    final float leftEyeOpenProbability;
+    final float rightEyeOpenProbability;
+    final float smilingProbability;
+
+    DetectedFace(int id, float left, float top, float width, float height,
+            float leftEyeOpenProbability, float rightEyeOpenProbability,
+            float smilingProbability) {
+        this.id = id;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.leftEyeOpenProbability = leftEyeOpenProbability;
+        this.rightEyeOpenProbability = rightEyeOpenProbability;
+        this.smilingProbability = smilingProbability;
+    }
+
+    /**
+     * Copies the bounds and probabilities out of a face returned by the detector.
+     *
+     * @param face The detected face.
+     */
+    static DetectedFace from(Face face) {
+        return new DetectedFace(face.getId(), face.getPosition().x, face.getPosition().y,
+                face.getWidth(), face.getHeight(), face.getIsLeftEyeOpenProbability(),
+                face.getIsRightEyeOpenProbability(), face.getIsSmilingProbability());
+    }
+
+    /**
+     * Maps the face into another coordinate space, such as from a downscaled copy of a
+     * picture back to the picture itself. The probabilities are unchanged.
+     *
+     * @param scaleX The horizontal scale factor.
+     * @param scaleY The vertical scale factor.
+     * @return The scaled face.
+     */
+    DetectedFace scale(float scaleX, float scaleY) {
+        return new DetectedFace(id, left * scaleX, top * scaleY, width * scaleX,
+                height * scaleY, leftEyeOpenProbability, rightEyeOpenProbability,
+                smilingProbability);
+    }
+
+    @Override
+    public String toString() {
+        return "DetectedFace[id=" + id + ", left=" + left + ", top=" + top
+                + ", width=" + width + ", height=" + height + "]";
+    }
+}
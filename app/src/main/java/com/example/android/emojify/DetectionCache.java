@@ -0,0 +1,303 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent cache of detection results, keyed by a hash of the decoded pixels and the
+ * detector configuration.
+ *
+ * Re-emojifying a picture that was already seen skips the face detector: the stored faces
+ * go straight to compositing. The key covers the size of the decode and the configuration
+ * the detection started with, so a picture decoded at another size, or detected with other
+ * settings such as a larger minimum face size, is a different entry and is detected again.
+ * Each entry is a small file under the cache directory, the most recent entries are also
+ * kept in memory, and the least recently used files are deleted past {@link #MAX_ENTRIES}.
+ */
+class DetectionCache {
+
+    private static final String TAG = DetectionCache.class.getSimpleName();
+
+    private static final String DIRECTORY = "detections";
+    private static final String SUFFIX = ".faces";
+
+    // Bumped whenever the entry format or the detector configuration changes
+    static final int VERSION = 2;
+
+    // Entries kept on disk, each is a few hundred bytes at most
+    static final int MAX_ENTRIES = 256;
+
+    // Entries also kept in memory
+    private static final int MEMORY_ENTRIES = 16;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static DetectionCache sInstance;
+
+    /**
+     * The faces found in a picture of a given size. The size guards against hash collisions
+     * between pictures of different sizes.
+     */
+    static class Entry {
+
+        final int width;
+        final int height;
+        final List<DetectedFace> faces;
+
+        Entry(int width, int height, List<DetectedFace> faces) {
+            this.width = width;
+            this.height = height;
+            this.faces = faces;
+        }
+    }
+
+    private final File mDirectory;
+    private final LruCache<Long, Entry> mMemory = new LruCache<>(MEMORY_ENTRIES);
+
+    private DetectionCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the process-wide detection cache.
+     *
+     * @param context The application context.
+     */
+    static synchronized DetectionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DetectionCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Hashes the detector configuration and the size and pixels of a bitmap, one row at a
+     * time so no full copy is made.
+     *
+     * @param bitmap The decoded picture.
+     * @param config The configuration the detection starts with.
+     * @return The key of the picture.
+     */
+    static long keyOf(Bitmap bitmap, DetectorConfig config) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        long hash = hash(FNV_OFFSET_BASIS, new int[] {width, height, config.hashCode()}, 3);
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            hash = hash(hash, row, width);
+        }
+        return hash;
+    }
+
+    /**
+     * Folds values into a 64 bit FNV-1a hash, a word at a time.
+     *
+     * @param hash   The hash so far, {@link #FNV_OFFSET_BASIS} to start.
+     * @param values The values to add.
+     * @param count  How many of the values to add.
+     * @return The new hash.
+     */
+    static long hash(long hash, int[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            hash ^= values[i];
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Looks up the faces of a picture.
+     *
+     * @param key The key from {@link #keyOf(Bitmap, DetectorConfig)}.
+     * @return The stored entry, or null if the picture has not been seen.
+     */
+    synchronized Entry get(long key) {
+        Entry entry = mMemory.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        File file = fileOf(key);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            entry = read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        if (entry == null) {
+            // Written by an older version
+            file.delete();
+            return null;
+        }
+
+        // Touch the file so it counts as recently used
+        file.setLastModified(System.currentTimeMillis());
+        mMemory.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Stores the faces of a picture, evicting the least recently used entries if needed.
+     *
+     * @param key   The key from {@link #keyOf(Bitmap, DetectorConfig)}.
+     * @param entry The faces and the size of the picture they were found in.
+     */
+    synchronized void put(long key, Entry entry) {
+        mMemory.put(key, entry);
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+        File file = fileOf(key);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            write(entry, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            file.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        trimToSize(MAX_ENTRIES);
+    }
+
+    /**
+     * Deletes every entry, in memory and on disk.
+     */
+    synchronized void clear() {
+        mMemory.evictAll();
+        trimToSize(0);
+    }
+
+    /**
+     * Deletes the least recently used files until at most maxEntries are left.
+     */
+    private void trimToSize(int maxEntries) {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= maxEntries) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lhs = a.lastModified();
+                long rhs = b.lastModified();
+                return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - maxEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File fileOf(long key) {
+        return new File(mDirectory, Long.toHexString(key) + SUFFIX);
+    }
+
+    /**
+     * Writes an entry in the binary entry format.
+     */
+    static void write(Entry entry, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(VERSION);
+        out.writeInt(entry.width);
+        out.writeInt(entry.height);
+        out.writeInt(entry.faces.size());
+        for (DetectedFace face : entry.faces) {
+            out.writeInt(face.id);
+            out.writeFloat(face.left);
+            out.writeFloat(face.top);
+            out.writeFloat(face.width);
+            out.writeFloat(face.height);
+            out.writeFloat(face.leftEyeOpenProbability);
+            out.writeFloat(face.rightEyeOpenProbability);
+            out.writeFloat(face.smilingProbability);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads an entry in the binary entry format.
+     *
+     * @return The entry, or null if it was written with another version.
+     */
+    static Entry read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        int count = in.readInt();
+        if (width <= 0 || height <= 0 || count < 0) {
+            throw new IOException("Corrupt entry " + width + "x" + height + ", " + count);
+        }
+        List<DetectedFace> faces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            faces.add(new DetectedFace(in.readInt(), in.readFloat(), in.readFloat(),
+                    in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(),
+                    in.readFloat()));
+        }
+        return new Entry(width, height, Collections.unmodifiableList(faces));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+}
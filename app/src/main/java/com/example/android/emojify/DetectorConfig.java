@@ -0,0 +1,103 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+
+import com.google.android.gms.vision.face.FaceDetector;
+
+/**
+ * The settings a {@link FaceDetector} is built with. Two equal configurations can share one
+ * detector instance.
+ */
+class DetectorConfig {
+
+    // The configuration used for still photos: the builder defaults, no tracking and all
+    // classifications
+    static final DetectorConfig STILL_IMAGE = new DetectorConfig(false,
+            FaceDetector.ALL_CLASSIFICATIONS, FaceDetector.FAST_MODE, 0.1f, false);
+
+    // The configuration used for the live preview: tracking on and small faces skipped, so
+    // each frame is cheap and faces keep their ids between frames
+    static final DetectorConfig LIVE_PREVIEW = new DetectorConfig(true,
+            FaceDetector.ALL_CLASSIFICATIONS, FaceDetector.FAST_MODE, 0.15f, false);
+
+    final boolean trackingEnabled;
+    final int classificationType;
+    final int mode;
+    final float minFaceSize;
+    final boolean prominentFaceOnly;
+
+    DetectorConfig(boolean trackingEnabled, int classificationType, int mode, float minFaceSize,
+            boolean prominentFaceOnly) {
+        this.trackingEnabled = trackingEnabled;
+        this.classificationType = classificationType;
+        this.mode = mode;
+        this.minFaceSize = minFaceSize;
+        this.prominentFaceOnly = prominentFaceOnly;
+    }
+
+    /**
+     * Builds a new detector with this configuration.
+     *
+     * @param context The application context.
+     */
+    FaceDetector build(Context context) {
+        return new FaceDetector.Builder(context)
+                .setTrackingEnabled(trackingEnabled)
+                .setClassificationType(classificationType)
+                .setMode(mode)
+                .setMinFaceSize(minFaceSize)
+                .setProminentFaceOnly(prominentFaceOnly)
+                .build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DetectorConfig)) {
+            return false;
+        }
+        DetectorConfig other = (DetectorConfig) o;
+        return trackingEnabled == other.trackingEnabled
+                && classificationType == other.classificationType
+                && mode == other.mode
+                && Float.compare(minFaceSize, other.minFaceSize) == 0
+                && prominentFaceOnly == other.prominentFaceOnly;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = trackingEnabled ? 1 : 0;
+        result = 31 * result + classificationType;
+        result = 31 * result + mode;
+        result = 31 * result + Float.floatToIntBits(minFaceSize);
+        result = 31 * result + (prominentFaceOnly ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DetectorConfig[tracking=" + trackingEnabled
+                + ", classification=" + classificationType
+                + ", mode=" + mode
+                + ", minFaceSize=" + minFaceSize
+                + ", prominentOnly=" + prominentFaceOnly + "]";
+    }
+}
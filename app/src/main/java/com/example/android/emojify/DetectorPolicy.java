@@ -0,0 +1,323 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the {@link DetectorConfig} for a still picture from its size, the number of faces
+ * expected in it and a latency budget.
+ *
+ * The policy learns how many milliseconds per megapixel each detector mode takes on this
+ * device, and how many faces pictures usually have, from the timings of earlier runs.
+ * Selfies get the cheapest configuration: fast mode, large faces only and, when the caller
+ * knows there is one face, the prominent face only. Crowds get small faces, and accurate
+ * mode when it fits the budget. Classifications are always on, the emoji depends on them.
+ *
+ * A face count learned from earlier pictures is only a guess, so it never narrows the
+ * search below {@link DetectorConfig#STILL_IMAGE}: a group photo after a run of selfies
+ * still finds every face. A picture is only taken for a selfie on its own evidence: a
+ * caller that knows its pictures says so through {@link Hints}, and the others run the
+ * selfie configuration first and keep its face if {@link #isSelfie} accepts it. The default
+ * budget is the {@code detector_latency_budget_ms} resource.
+ */
+class DetectorPolicy {
+
+    private static final String TAG = DetectorPolicy.class.getSimpleName();
+
+    private static final String PREFERENCES = "detector_policy";
+    private static final String KEY_FAST_MS_PER_MEGAPIXEL = "fast_ms_per_megapixel";
+    private static final String KEY_ACCURATE_MS_PER_MEGAPIXEL = "accurate_ms_per_megapixel";
+    private static final String KEY_FACES_PER_IMAGE = "faces_per_image";
+
+    static final long DEFAULT_LATENCY_BUDGET_MILLIS = 250;
+
+    // Starting estimates, replaced by measurements after the first runs
+    static final float INITIAL_FAST_MS_PER_MEGAPIXEL = 80f;
+    static final float INITIAL_ACCURATE_MS_PER_MEGAPIXEL = 300f;
+    static final float INITIAL_FACES_PER_IMAGE = 2f;
+
+    // Weight of the newest sample in the moving averages
+    static final float SMOOTHING = 0.2f;
+
+    // Minimum face sizes, as a fraction of the picture width. Only these few are used so the
+    // detector manager keeps a handful of detectors at most
+    static final float MIN_FACE_SIZE_SELFIE = 0.25f;
+    static final float MIN_FACE_SIZE_GROUP = 0.1f;
+    static final float MIN_FACE_SIZE_CROWD = 0.05f;
+
+    /**
+     * How many faces the caller expects in a picture.
+     */
+    enum FaceCountHint {
+        // Use what earlier pictures had
+        UNKNOWN,
+        // A selfie or portrait
+        SINGLE,
+        // A handful of people
+        FEW,
+        // A crowd
+        MANY
+    }
+
+    /**
+     * What a caller knows about its pictures, read from the extras of a batch or service
+     * request.
+     */
+    static final class Hints {
+
+        // The name of a FaceCountHint, in any case
+        static final String KEY_FACE_COUNT_HINT = "face_count_hint";
+        // A long or int number of milliseconds
+        static final String KEY_LATENCY_BUDGET_MILLIS = "latency_budget_ms";
+
+        static final Hints DEFAULT = new Hints(FaceCountHint.UNKNOWN, 0);
+
+        final FaceCountHint faceCount;
+        // 0 to use the budget of the policy
+        final long latencyBudgetMillis;
+
+        Hints(FaceCountHint faceCount, long latencyBudgetMillis) {
+            this.faceCount = faceCount;
+            this.latencyBudgetMillis = latencyBudgetMillis;
+        }
+
+        /**
+         * Reads the hints of a request. Missing or invalid values fall back to the defaults.
+         *
+         * @param extras The extras of the request, may be null.
+         */
+        static Hints from(Bundle extras) {
+            if (extras == null) {
+                return DEFAULT;
+            }
+            FaceCountHint faceCount = FaceCountHint.UNKNOWN;
+            String name = extras.getString(KEY_FACE_COUNT_HINT);
+            if (name != null) {
+                try {
+                    faceCount = FaceCountHint.valueOf(name.trim().toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Ignoring unknown face count hint " + name);
+                }
+            }
+            // adb sends --ei as an int and --el as a long
+            long latencyBudgetMillis = 0;
+            Object budget = extras.get(KEY_LATENCY_BUDGET_MILLIS);
+            if (budget instanceof Number) {
+                latencyBudgetMillis = Math.max(0, ((Number) budget).longValue());
+            }
+            return new Hints(faceCount, latencyBudgetMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "Hints[faces=" + faceCount + ", budget=" + latencyBudgetMillis + " ms]";
+        }
+    }
+
+    private static DetectorPolicy sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    private long mLatencyBudgetMillis = DEFAULT_LATENCY_BUDGET_MILLIS;
+    private float mFastMsPerMegapixel;
+    private float mAccurateMsPerMegapixel;
+    private float mFacesPerImage;
+
+    /**
+     * @param preferences Where the learned timings are kept, null to keep them in memory.
+     */
+    DetectorPolicy(SharedPreferences preferences) {
+        mPreferences = preferences;
+        if (preferences != null) {
+            mFastMsPerMegapixel = preferences.getFloat(KEY_FAST_MS_PER_MEGAPIXEL,
+                    INITIAL_FAST_MS_PER_MEGAPIXEL);
+            mAccurateMsPerMegapixel = preferences.getFloat(KEY_ACCURATE_MS_PER_MEGAPIXEL,
+                    INITIAL_ACCURATE_MS_PER_MEGAPIXEL);
+            mFacesPerImage = preferences.getFloat(KEY_FACES_PER_IMAGE, INITIAL_FACES_PER_IMAGE);
+        } else {
+            mFastMsPerMegapixel = INITIAL_FAST_MS_PER_MEGAPIXEL;
+            mAccurateMsPerMegapixel = INITIAL_ACCURATE_MS_PER_MEGAPIXEL;
+            mFacesPerImage = INITIAL_FACES_PER_IMAGE;
+        }
+    }
+
+    /**
+     * Returns the process-wide policy, with the timings learned in earlier sessions and the
+     * latency budget from the resources.
+     *
+     * @param context The application context.
+     */
+    static synchronized DetectorPolicy getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new DetectorPolicy(appContext.getSharedPreferences(PREFERENCES,
+                    Context.MODE_PRIVATE));
+            sInstance.setLatencyBudgetMillis(
+                    appContext.getResources().getInteger(R.integer.detector_latency_budget_ms));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets how long detecting the faces of a picture may take.
+     *
+     * @param latencyBudgetMillis The budget in milliseconds.
+     */
+    synchronized void setLatencyBudgetMillis(long latencyBudgetMillis) {
+        mLatencyBudgetMillis = latencyBudgetMillis;
+    }
+
+    synchronized long getLatencyBudgetMillis() {
+        return mLatencyBudgetMillis;
+    }
+
+    /**
+     * Picks the configuration for a picture, within the budget of the policy.
+     *
+     * @param width  The width of the picture the detector runs on.
+     * @param height The height of the picture the detector runs on.
+     * @param hint   The number of faces the caller expects.
+     * @return The configuration, one of a small fixed set.
+     */
+    synchronized DetectorConfig choose(int width, int height, FaceCountHint hint) {
+        return choose(width, height, new Hints(hint, 0));
+    }
+
+    /**
+     * Picks the configuration for a picture.
+     *
+     * @param width  The width of the picture the detector runs on.
+     * @param height The height of the picture the detector runs on.
+     * @param hints  The number of faces the caller expects and its latency budget.
+     * @return The configuration, one of a small fixed set.
+     */
+    synchronized DetectorConfig choose(int width, int height, Hints hints) {
+        long budgetMillis = hints.latencyBudgetMillis > 0
+                ? hints.latencyBudgetMillis : mLatencyBudgetMillis;
+        FaceCountHint hint = hints.faceCount;
+        if (hint == FaceCountHint.UNKNOWN) {
+            // A guess never looks for fewer or larger faces than the still image detector
+            hint = mFacesPerImage < 4f ? FaceCountHint.FEW : FaceCountHint.MANY;
+        }
+
+        switch (hint) {
+            case SINGLE:
+                return config(FaceDetector.FAST_MODE, MIN_FACE_SIZE_SELFIE, true);
+            case FEW:
+                return config(FaceDetector.FAST_MODE, MIN_FACE_SIZE_GROUP, false);
+            default:
+                // Accurate mode finds more turned and partial faces, if there is time for it
+                float megapixels = megapixels(width, height);
+                int mode = mAccurateMsPerMegapixel * megapixels <= budgetMillis
+                        ? FaceDetector.ACCURATE_MODE : FaceDetector.FAST_MODE;
+                return config(mode, MIN_FACE_SIZE_CROWD, false);
+        }
+    }
+
+    /**
+     * Tells whether the faces found by the selfie configuration are a selfie: at least one
+     * face, each covering {@link #MIN_FACE_SIZE_SELFIE} of the picture width or more. A
+     * picture with a smaller face, or none, is searched for more faces.
+     *
+     * @param faces The faces found with the {@link FaceCountHint#SINGLE} configuration.
+     * @param width The width of the picture the faces are in.
+     */
+    static boolean isSelfie(List<DetectedFace> faces, int width) {
+        if (faces.isEmpty()) {
+            return false;
+        }
+        for (DetectedFace face : faces) {
+            if (face.width < MIN_FACE_SIZE_SELFIE * width) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Learns from a finished detection.
+     *
+     * @param config The configuration the detector ran with.
+     * @param width  The width of the picture.
+     * @param height The height of the picture.
+     * @param millis How long the detection took.
+     * @param faces  How many faces were found.
+     */
+    synchronized void record(DetectorConfig config, int width, int height, long millis,
+            int faces) {
+        float msPerMegapixel = millis / Math.max(megapixels(width, height), 0.01f);
+        if (config.mode == FaceDetector.ACCURATE_MODE) {
+            mAccurateMsPerMegapixel = average(mAccurateMsPerMegapixel, msPerMegapixel);
+        } else {
+            mFastMsPerMegapixel = average(mFastMsPerMegapixel, msPerMegapixel);
+        }
+        // Prominent face only runs cannot tell how many faces there were
+        if (!config.prominentFaceOnly) {
+            mFacesPerImage = average(mFacesPerImage, faces);
+        }
+
+        if (mPreferences != null) {
+            mPreferences.edit()
+                    .putFloat(KEY_FAST_MS_PER_MEGAPIXEL, mFastMsPerMegapixel)
+                    .putFloat(KEY_ACCURATE_MS_PER_MEGAPIXEL, mAccurateMsPerMegapixel)
+                    .putFloat(KEY_FACES_PER_IMAGE, mFacesPerImage)
+                    .apply();
+        }
+    }
+
+    /**
+     * @return The predicted detection time of a picture in a mode, in milliseconds.
+     */
+    synchronized float predictMillis(int mode, int width, int height) {
+        float msPerMegapixel = mode == FaceDetector.ACCURATE_MODE
+                ? mAccurateMsPerMegapixel : mFastMsPerMegapixel;
+        return msPerMegapixel * megapixels(width, height);
+    }
+
+    synchronized float getFacesPerImage() {
+        return mFacesPerImage;
+    }
+
+    private static DetectorConfig config(int mode, float minFaceSize, boolean prominentOnly) {
+        return new DetectorConfig(false, FaceDetector.ALL_CLASSIFICATIONS, mode, minFaceSize,
+                prominentOnly);
+    }
+
+    private static float average(float average, float sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+
+    private static float megapixels(int width, int height) {
+        return (float) width * height / 1000000f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DetectorPolicy[fast=" + mFastMsPerMegapixel + " ms/MP, accurate="
+                + mAccurateMsPerMegapixel + " ms/MP, faces=" + mFacesPerImage
+                + ", budget=" + mLatencyBudgetMillis + " ms]";
+    }
+}
@@ -0,0 +1,248 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.example.android.emojify.Emojifier.Emoji;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Re-renders an emojified picture as the user edits it: the thresholds, the emoji scale, or
+ * the emoji of a single face.
+ *
+ * The session keeps the clean source picture and the detected faces. An edit only touches
+ * the faces whose emoji or placement changed: each of their old and new emoji rectangles is
+ * restored from the source and every emoji that overlaps it is drawn again, in face order.
+ * An edit costs in proportion to the area of the faces it changes, never the whole frame.
+ * Sessions are not thread safe and are used on the main thread.
+ */
+class EditSession {
+
+    static final float MIN_SCALE = 0.5f;
+    static final float MAX_SCALE = 2f;
+
+    private final EmojiAtlas mAtlas;
+    private final Bitmap mSource;
+    private final Bitmap mResult;
+    private final Canvas mCanvas;
+    private final List<DetectedFace> mFaces;
+
+    // Per face: the emoji chosen by the user, null to follow the classifier
+    private final Emoji[] mOverrides;
+
+    // Per face: what is currently drawn, and where
+    private final Emoji[] mEmojis;
+    private final RectF[] mEmojiBounds;
+    private final Rect[] mEmojiRects;
+
+    private EmojiClassifier mClassifier;
+    private float mScale = Emojifier.EMOJI_SCALE_FACTOR;
+
+    /**
+     * Starts a session over a picture emojified with the app classifier and default scale.
+     *
+     * @param context The application context.
+     * @param source  The picture without emojis, which the session keeps unmodified.
+     * @param result  The picture with the emojis drawn by {@link Emojifier}, edited in place
+     *                when it is mutable.
+     * @param faces   The faces detected in the source.
+     */
+    EditSession(Context context, Bitmap source, Bitmap result, List<DetectedFace> faces) {
+        mAtlas = EmojiAtlas.getInstance(context);
+        mClassifier = EmojiClassifier.getInstance(context);
+        mSource = source;
+        mFaces = new ArrayList<>(faces);
+
+        int count = mFaces.size();
+        mOverrides = new Emoji[count];
+        mEmojis = new Emoji[count];
+        mEmojiBounds = new RectF[count];
+        mEmojiRects = new Rect[count];
+
+        boolean redraw = result == source || !result.isMutable();
+        mResult = redraw ? source.copy(Bitmap.Config.ARGB_8888, true) : result;
+        mCanvas = new Canvas(mResult);
+
+        // Lay out the emojis the way the pipeline drew them
+        for (int i = 0; i < count; i++) {
+            layout(i);
+        }
+        if (redraw) {
+            for (Rect rect : mEmojiRects) {
+                redraw(rect);
+            }
+        }
+    }
+
+    /**
+     * @return The edited picture. It is modified in place by every edit.
+     */
+    Bitmap getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return The picture without emojis.
+     */
+    Bitmap getSource() {
+        return mSource;
+    }
+
+    EmojiClassifier getClassifier() {
+        return mClassifier;
+    }
+
+    float getScale() {
+        return mScale;
+    }
+
+    /**
+     * @return The emoji currently drawn over each face, in the order of the faces.
+     */
+    List<Emoji> getEmojis() {
+        List<Emoji> emojis = new ArrayList<>(mEmojis.length);
+        for (Emoji emoji : mEmojis) {
+            emojis.add(emoji);
+        }
+        return emojis;
+    }
+
+    int getFaceCount() {
+        return mFaces.size();
+    }
+
+    /**
+     * Changes the thresholds. Only the faces whose emoji changes are redrawn.
+     *
+     * @param classifier The new thresholds.
+     * @return The area of the picture that changed, empty if nothing did.
+     */
+    Rect setClassifier(EmojiClassifier classifier) {
+        mClassifier = classifier;
+        return update();
+    }
+
+    /**
+     * Changes how much wider than its face each emoji is.
+     *
+     * @param scale The new scale, clamped to [{@link #MIN_SCALE}, {@link #MAX_SCALE}].
+     * @return The area of the picture that changed, empty if nothing did.
+     */
+    Rect setScale(float scale) {
+        mScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        return update();
+    }
+
+    /**
+     * Overrides the emoji of one face with the next emoji, whatever the thresholds say.
+     *
+     * @param face The index of the face.
+     * @return The area of the picture that changed.
+     */
+    Rect cycleEmoji(int face) {
+        Emoji[] emojis = Emoji.values();
+        mOverrides[face] = emojis[(mEmojis[face].ordinal() + 1) % emojis.length];
+        return update();
+    }
+
+    /**
+     * Returns the face whose emoji is drawn at a point, the topmost one if several are.
+     *
+     * @param x The column in the picture.
+     * @param y The row in the picture.
+     * @return The index of the face, or -1 if there is no emoji at that point.
+     */
+    int faceAt(float x, float y) {
+        for (int i = mEmojiRects.length - 1; i >= 0; i--) {
+            if (mEmojiRects[i].contains((int) x, (int) y)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lays out every face again and redraws the ones that changed.
+     */
+    private Rect update() {
+        long start = EmojifyMetrics.begin();
+        List<Rect> dirtyRects = new ArrayList<>();
+        for (int i = 0; i < mFaces.size(); i++) {
+            Emoji emoji = mEmojis[i];
+            RectF oldBounds = new RectF(mEmojiBounds[i]);
+            Rect oldRect = new Rect(mEmojiRects[i]);
+
+            layout(i);
+            if (emoji != mEmojis[i] || !oldBounds.equals(mEmojiBounds[i])) {
+                oldRect.union(mEmojiRects[i]);
+                dirtyRects.add(oldRect);
+            }
+        }
+
+        // Redraw each dirty area on its own, their union may cover much more of the frame
+        Rect changed = new Rect();
+        for (Rect dirty : dirtyRects) {
+            redraw(dirty);
+            changed.union(dirty);
+        }
+        EmojifyMetrics.end(EmojifyMetrics.Stage.COMPOSITE, start);
+        return changed;
+    }
+
+    /**
+     * Picks the emoji of a face and where it is drawn.
+     */
+    private void layout(int i) {
+        DetectedFace face = mFaces.get(i);
+        Emoji emoji = mOverrides[i] != null ? mOverrides[i] : mClassifier.classify(face);
+        if (mEmojiBounds[i] == null) {
+            mEmojiBounds[i] = new RectF();
+            mEmojiRects[i] = new Rect();
+        }
+        RectF bounds = mEmojiBounds[i];
+        mAtlas.layout(emoji, face.left, face.top, face.width, face.height, mScale, bounds);
+
+        mEmojis[i] = emoji;
+        bounds.roundOut(mEmojiRects[i]);
+    }
+
+    /**
+     * Restores an area from the source and draws every emoji that overlaps it, in order.
+     */
+    private void redraw(Rect dirty) {
+        if (!dirty.intersect(0, 0, mResult.getWidth(), mResult.getHeight())) {
+            dirty.setEmpty();
+            return;
+        }
+        mCanvas.save();
+        mCanvas.clipRect(dirty);
+        mCanvas.drawBitmap(mSource, dirty, dirty, null);
+        for (int i = 0; i < mEmojiRects.length; i++) {
+            if (Rect.intersects(mEmojiRects[i], dirty)) {
+                mAtlas.draw(mCanvas, mEmojis[i], mEmojiBounds[i]);
+            }
+        }
+        mCanvas.restore();
+    }
+}
@@ -0,0 +1,306 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.emojify.raster.ArgbScaler;
+import com.example.android.emojify.raster.EmojiPlacement;
+
+/**
+ * Every emoji drawable packed into one bitmap, at full size and at a few halved mip levels.
+ *
+ * An emoji is drawn by scaling the sub-rectangle of the closest level that is at least as
+ * wide as the target with a filtered draw, so nothing is allocated per face and the
+ * filtering never shrinks by more than half. The atlas is built once per process and its
+ * memory is fixed, whatever the number and size of the faces.
+ *
+ * Level 0 holds the drawables at their pixel size, without density scaling. Levels are
+ * laid out in two rows: level 0 on top, and the smaller levels side by side below it.
+ * Each cell has a transparent gutter so filtering never samples a neighbor.
+ *
+ * The compositors blend {@link Sprite}s instead, scaled from the same levels by the
+ * {@code raster} module, so their pixel math is the code the JMH benchmarks measure.
+ */
+class EmojiAtlas {
+
+    private static final String TAG = EmojiAtlas.class.getSimpleName();
+
+    // Levels are added while they are at least this wide
+    private static final int MIN_LEVEL_WIDTH = 24;
+
+    private static final int GUTTER = 2;
+
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static EmojiAtlas sInstance;
+
+    private final Bitmap mAtlas;
+
+    // Per emoji: the size of the drawable, and where each level is in the atlas
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final Rect[][] mLevels;
+
+    // The pixels of each level, read from the atlas the first time a sprite needs them
+    private final int[][][] mLevelPixels;
+
+    /**
+     * An emoji scaled for a face, as non-premultiplied ARGB pixels in the layout of
+     * {@code Bitmap.getPixels}, with the position of its top left corner in the picture.
+     */
+    static final class Sprite {
+
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Sprite(int left, int top, int width, int height, int[] pixels) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        /**
+         * @return True if the sprite covers any of the rows [top, bottom).
+         */
+        boolean overlapsRows(int top, int bottom) {
+            return this.top < bottom && this.top + height > top;
+        }
+    }
+
+    private EmojiAtlas(Resources resources) {
+        this(decodeDrawables(resources));
+    }
+
+    /**
+     * Builds the atlas from drawables that are already decoded, which host tests read from
+     * the drawable files.
+     *
+     * @param drawables The drawable of each emoji, by ordinal. They are recycled.
+     */
+    EmojiAtlas(Bitmap[] drawables) {
+        int count = drawables.length;
+        mWidths = new int[count];
+        mHeights = new int[count];
+        int cellWidth = 0;
+        int cellHeight = 0;
+        for (int i = 0; i < count; i++) {
+            mWidths[i] = drawables[i].getWidth();
+            mHeights[i] = drawables[i].getHeight();
+            cellWidth = Math.max(cellWidth, mWidths[i]);
+            cellHeight = Math.max(cellHeight, mHeights[i]);
+        }
+
+        int levelCount = 1;
+        while ((cellWidth >> levelCount) >= MIN_LEVEL_WIDTH) {
+            levelCount++;
+        }
+
+        // Level 0 fills the top row, the other levels follow each other in the second row
+        int[] levelX = new int[levelCount];
+        int[] levelY = new int[levelCount];
+        int secondRowWidth = 0;
+        for (int level = 1; level < levelCount; level++) {
+            levelX[level] = secondRowWidth;
+            levelY[level] = cellHeight + 2 * GUTTER;
+            secondRowWidth += count * ((cellWidth >> level) + 2 * GUTTER);
+        }
+        int atlasWidth = Math.max(count * (cellWidth + 2 * GUTTER), secondRowWidth);
+        int atlasHeight = cellHeight + 2 * GUTTER
+                + (levelCount > 1 ? (cellHeight >> 1) + 2 * GUTTER : 0);
+
+        mAtlas = Bitmap.createBitmap(atlasWidth, atlasHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(mAtlas);
+        mLevels = new Rect[count][levelCount];
+        mLevelPixels = new int[count][levelCount][];
+        for (int i = 0; i < count; i++) {
+            // Each level is filtered down from the one above, which averages 2x2 pixels
+            Bitmap level = drawables[i];
+            for (int l = 0; l < levelCount; l++) {
+                int width = Math.max(1, mWidths[i] >> l);
+                int height = Math.max(1, mHeights[i] >> l);
+                if (l > 0) {
+                    Bitmap previous = level;
+                    level = Bitmap.createScaledBitmap(previous, width, height, true);
+                    previous.recycle();
+                }
+                int left = levelX[l] + i * ((cellWidth >> l) + 2 * GUTTER) + GUTTER;
+                int top = levelY[l] + GUTTER;
+                canvas.drawBitmap(level, left, top, null);
+                mLevels[i][l] = new Rect(left, top, left + width, top + height);
+            }
+            level.recycle();
+        }
+    }
+
+    /**
+     * Decodes the drawables at their pixel size.
+     */
+    private static Bitmap[] decodeDrawables(Resources resources) {
+        Emojifier.Emoji[] emojis = Emojifier.Emoji.values();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        Bitmap[] drawables = new Bitmap[emojis.length];
+        for (int i = 0; i < emojis.length; i++) {
+            drawables[i] = BitmapFactory.decodeResource(resources, emojis[i].drawableRes,
+                    options);
+        }
+        return drawables;
+    }
+
+    /**
+     * Returns the process-wide atlas, building it the first time.
+     *
+     * @param context The application context.
+     */
+    static synchronized EmojiAtlas getInstance(Context context) {
+        if (sInstance == null) {
+            long start = SystemClock.elapsedRealtime();
+            sInstance = new EmojiAtlas(context.getApplicationContext().getResources());
+            Log.d(TAG, "Built " + sInstance + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the atlas, for when memory runs low. It is not recycled, so draws already under
+     * way finish, and the next caller builds it again.
+     */
+    static synchronized void release() {
+        sInstance = null;
+    }
+
+    /**
+     * Describes the atlas without building it.
+     */
+    static synchronized String describe() {
+        return sInstance != null ? sInstance.toString() : TAG + "[not built]";
+    }
+
+    /**
+     * Computes where the emoji for a face is drawn: scaled to the face width with its
+     * aspect ratio preserved, centered horizontally and raised by a third of its height.
+     *
+     * @param emoji      The emoji.
+     * @param faceX      The left edge of the face.
+     * @param faceY      The top edge of the face.
+     * @param faceWidth  The width of the face.
+     * @param faceHeight The height of the face.
+     * @param scale      How much wider than its face the emoji is.
+     * @param bounds     Set to the bounds of the emoji.
+     */
+    void layout(Emojifier.Emoji emoji, float faceX, float faceY, float faceWidth,
+            float faceHeight, float scale, RectF bounds) {
+        int i = emoji.ordinal();
+        int width = EmojiPlacement.emojiWidth(faceWidth, scale);
+        int height = EmojiPlacement.emojiHeight(width, mWidths[i], mHeights[i]);
+        float left = EmojiPlacement.left(faceX, faceWidth, width);
+        float top = EmojiPlacement.top(faceY, faceHeight, height);
+        bounds.set(left, top, left + width, top + height);
+    }
+
+    /**
+     * Draws an emoji into bounds, from the closest mip level with a filtered draw.
+     *
+     * @param canvas The canvas to draw on.
+     * @param emoji  The emoji.
+     * @param bounds Where to draw it, usually from {@link #layout}.
+     */
+    void draw(Canvas canvas, Emojifier.Emoji emoji, RectF bounds) {
+        canvas.drawBitmap(mAtlas, mLevels[emoji.ordinal()][levelFor(emoji, bounds.width())],
+                bounds, FILTER_PAINT);
+    }
+
+    /**
+     * Lays out the emoji for a face as in {@link #layout}, and scales it to its bounds with
+     * bilinear filtering from the closest mip level.
+     *
+     * @return The scaled emoji, at its bounds rounded to whole pixels.
+     */
+    Sprite place(Emojifier.Emoji emoji, float faceX, float faceY, float faceWidth,
+            float faceHeight, float scale) {
+        RectF bounds = new RectF();
+        layout(emoji, faceX, faceY, faceWidth, faceHeight, scale, bounds);
+        int width = Math.round(bounds.width());
+        int height = Math.round(bounds.height());
+        int l = levelFor(emoji, width);
+        Rect level = mLevels[emoji.ordinal()][l];
+        int[] pixels = ArgbScaler.scaleBilinear(levelPixels(emoji, l), level.width(),
+                level.height(), width, height);
+        return new Sprite(Math.round(bounds.left), Math.round(bounds.top), width, height,
+                pixels);
+    }
+
+    /**
+     * Returns the pixels of a level of an emoji, reading them from the atlas the first time.
+     */
+    private int[] levelPixels(Emojifier.Emoji emoji, int l) {
+        Rect level = mLevels[emoji.ordinal()][l];
+        synchronized (mLevelPixels) {
+            int[] pixels = mLevelPixels[emoji.ordinal()][l];
+            if (pixels == null) {
+                pixels = new int[level.width() * level.height()];
+                mAtlas.getPixels(pixels, 0, level.width(), level.left, level.top,
+                        level.width(), level.height());
+                mLevelPixels[emoji.ordinal()][l] = pixels;
+            }
+            return pixels;
+        }
+    }
+
+    /**
+     * Returns the smallest level of an emoji that is at least as wide as the target, or
+     * level 0 when the target is wider than the drawable.
+     */
+    private int levelFor(Emojifier.Emoji emoji, float width) {
+        Rect[] levels = mLevels[emoji.ordinal()];
+        for (int l = levels.length - 1; l > 0; l--) {
+            if (levels[l].width() >= width) {
+                return l;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The size of the atlas bitmap, in bytes.
+     */
+    int getByteCount() {
+        return mAtlas.getByteCount();
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "[" + mAtlas.getWidth() + "x" + mAtlas.getHeight() + ", "
+                + mLevels[0].length + " levels, " + getByteCount() / 1024 + "KB]";
+    }
+}
@@ -0,0 +1,185 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.example.android.emojify.Emojifier.Emoji;
+
+/**
+ * Picks the emoji for a face from its classification probabilities, using a set of
+ * thresholds. Classifiers are immutable, editing a threshold returns a new classifier.
+ *
+ * Each probability is compared with its threshold to give one bit, and the three bits
+ * index a table of emojis, so classifying a face allocates nothing. The thresholds of the
+ * app come from resources, see {@link #getInstance(Context)}. Tracked faces can also use
+ * hysteresis, so a probability hovering around a threshold does not flip the emoji every
+ * frame.
+ */
+class EmojiClassifier {
+
+    private static final String TAG = EmojiClassifier.class.getSimpleName();
+
+    // Logs every classification, only for local debugging as it allocates per face
+    private static final boolean DEBUG = false;
+
+    static final float DEFAULT_LEFT_EYE_OPEN_THRESHOLD = 0.5f;
+    static final float DEFAULT_RIGHT_EYE_OPEN_THRESHOLD = 0.5f;
+    static final float DEFAULT_SMILING_THRESHOLD = 0.5f;
+
+    static final EmojiClassifier DEFAULT = new EmojiClassifier(DEFAULT_LEFT_EYE_OPEN_THRESHOLD,
+            DEFAULT_RIGHT_EYE_OPEN_THRESHOLD, DEFAULT_SMILING_THRESHOLD, 0f);
+
+    // The bits of the table index
+    static final int LEFT_EYE_OPEN = 4;
+    static final int RIGHT_EYE_OPEN = 2;
+    static final int SMILING = 1;
+
+    private static final Emoji[] EMOJIS = new Emoji[8];
+
+    // The table index of each emoji, by ordinal
+    private static final int[] INDICES = new int[Emoji.values().length];
+
+    static {
+        EMOJIS[0] = Emoji.CLOSED_EYE_FROWN;
+        EMOJIS[SMILING] = Emoji.CLOSED_EYE_SMILE;
+        EMOJIS[RIGHT_EYE_OPEN] = Emoji.LEFT_WINK_FROWN;
+        EMOJIS[RIGHT_EYE_OPEN | SMILING] = Emoji.LEFT_WINK;
+        EMOJIS[LEFT_EYE_OPEN] = Emoji.RIGHT_WINK_FROWN;
+        EMOJIS[LEFT_EYE_OPEN | SMILING] = Emoji.RIGHT_WINK;
+        EMOJIS[LEFT_EYE_OPEN | RIGHT_EYE_OPEN] = Emoji.FROWN;
+        EMOJIS[LEFT_EYE_OPEN | RIGHT_EYE_OPEN | SMILING] = Emoji.SMILE;
+        for (int i = 0; i < EMOJIS.length; i++) {
+            INDICES[EMOJIS[i].ordinal()] = i;
+        }
+    }
+
+    private static EmojiClassifier sInstance;
+
+    final float leftEyeOpenThreshold;
+    final float rightEyeOpenThreshold;
+    final float smilingThreshold;
+    final float hysteresis;
+
+    EmojiClassifier(float leftEyeOpenThreshold, float rightEyeOpenThreshold,
+            float smilingThreshold, float hysteresis) {
+        this.leftEyeOpenThreshold = leftEyeOpenThreshold;
+        this.rightEyeOpenThreshold = rightEyeOpenThreshold;
+        this.smilingThreshold = smilingThreshold;
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Returns the classifier of the app, with the thresholds and hysteresis from the
+     * resources.
+     *
+     * @param context The application context.
+     */
+    static synchronized EmojiClassifier getInstance(Context context) {
+        if (sInstance == null) {
+            Resources resources = context.getApplicationContext().getResources();
+            sInstance = new EmojiClassifier(
+                    resources.getFraction(R.fraction.left_eye_open_threshold, 1, 1),
+                    resources.getFraction(R.fraction.right_eye_open_threshold, 1, 1),
+                    resources.getFraction(R.fraction.smiling_threshold, 1, 1),
+                    resources.getFraction(R.fraction.classifier_hysteresis, 1, 1));
+            Log.d(TAG, "Using " + sInstance);
+        }
+        return sInstance;
+    }
+
+    EmojiClassifier withLeftEyeOpenThreshold(float threshold) {
+        return new EmojiClassifier(threshold, rightEyeOpenThreshold, smilingThreshold,
+                hysteresis);
+    }
+
+    EmojiClassifier withRightEyeOpenThreshold(float threshold) {
+        return new EmojiClassifier(leftEyeOpenThreshold, threshold, smilingThreshold,
+                hysteresis);
+    }
+
+    EmojiClassifier withSmilingThreshold(float threshold) {
+        return new EmojiClassifier(leftEyeOpenThreshold, rightEyeOpenThreshold, threshold,
+                hysteresis);
+    }
+
+    EmojiClassifier withHysteresis(float hysteresis) {
+        return new EmojiClassifier(leftEyeOpenThreshold, rightEyeOpenThreshold,
+                smilingThreshold, hysteresis);
+    }
+
+    /**
+     * Determines the closest emoji to the expression on the face, based on the
+     * odds that the person is smiling and has each eye open.
+     *
+     * @param face The face for which you pick an emoji.
+     */
+    Emoji classify(DetectedFace face) {
+        int index = (face.leftEyeOpenProbability > leftEyeOpenThreshold ? LEFT_EYE_OPEN : 0)
+                | (face.rightEyeOpenProbability > rightEyeOpenThreshold ? RIGHT_EYE_OPEN : 0)
+                | (face.smilingProbability > smilingThreshold ? SMILING : 0);
+        return lookUp(face, index);
+    }
+
+    /**
+     * Determines the emoji of a tracked face. Each threshold is moved away from the state
+     * of the previous emoji by the hysteresis, so a probability has to clearly cross it to
+     * change the emoji.
+     *
+     * @param face     The face for which you pick an emoji.
+     * @param previous The emoji the face had in the previous frame, or null.
+     */
+    Emoji classify(DetectedFace face, Emoji previous) {
+        if (previous == null || hysteresis == 0f) {
+            return classify(face);
+        }
+        int was = INDICES[previous.ordinal()];
+        int index = (face.leftEyeOpenProbability
+                        > shifted(leftEyeOpenThreshold, was, LEFT_EYE_OPEN) ? LEFT_EYE_OPEN : 0)
+                | (face.rightEyeOpenProbability
+                        > shifted(rightEyeOpenThreshold, was, RIGHT_EYE_OPEN) ? RIGHT_EYE_OPEN : 0)
+                | (face.smilingProbability
+                        > shifted(smilingThreshold, was, SMILING) ? SMILING : 0);
+        return lookUp(face, index);
+    }
+
+    /**
+     * Lowers a threshold when its bit was set, so the bit stays set, and raises it otherwise.
+     */
+    private float shifted(float threshold, int previousIndex, int bit) {
+        return (previousIndex & bit) != 0 ? threshold - hysteresis : threshold + hysteresis;
+    }
+
+    private static Emoji lookUp(DetectedFace face, int index) {
+        Emoji emoji = EMOJIS[index];
+        if (DEBUG) {
+            Log.v(TAG, "Probabilities left eye open " + face.leftEyeOpenProbability
+                    + ", right eye open " + face.rightEyeOpenProbability + ", smiling "
+                    + face.smilingProbability + ": " + emoji.name());
+        }
+        return emoji;
+    }
+
+    @Override
+    public String toString() {
+        return "EmojiClassifier[leftEyeOpen=" + leftEyeOpenThreshold + ", rightEyeOpen="
+                + rightEyeOpenThreshold + ", smiling=" + smilingThreshold + ", hysteresis="
+                + hysteresis + "]";
+    }
+}
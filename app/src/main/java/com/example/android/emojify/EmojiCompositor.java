@@ -0,0 +1,240 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import com.example.android.emojify.raster.ArgbBlend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blends every emoji for a picture into its pixels.
+ *
+ * The compositor makes at most one mutable copy of the picture, no matter how many faces
+ * are drawn. In place mode skips even that copy when the picture is already mutable. Each
+ * emoji is scaled once into an {@link EmojiAtlas.Sprite}, then the picture is read a few
+ * rows at a time with {@code getPixels}, the sprites over those rows are blended in with
+ * {@link ArgbBlend}, and the rows are written back with {@code setPixels}. This is the
+ * pixel math of the {@code raster} module, which the JMH benchmarks measure.
+ *
+ * Crowds of at least {@link #PARALLEL_MIN_FACES} faces are drawn in parallel: the picture is
+ * split into horizontal bands and each band is blended by its own task on a pool with one
+ * thread per core. Every band blends the sprites that reach into it in face order, so
+ * overlapping emojis stack exactly as they do when drawn one after the other.
+ */
+class EmojiCompositor {
+
+    // Fewer faces than this are drawn on the calling thread
+    static final int PARALLEL_MIN_FACES = 8;
+
+    // Bands thinner than this cost more to schedule than they save
+    private static final int MIN_BAND_HEIGHT = 64;
+
+    // Bands per thread, so a band crowded with faces does not hold up the whole picture
+    private static final int BANDS_PER_THREAD = 2;
+
+    // Rows are blended through a buffer of about this many pixels
+    private static final int BUFFER_PIXELS = 64 * 1024;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "EmojiCompositor");
+                }
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final EmojiAtlas mAtlas;
+    private final Bitmap mResult;
+
+    /**
+     * Creates a compositor for a picture.
+     *
+     * @param atlas   The emojis.
+     * @param picture The picture to draw on.
+     * @param inPlace True to draw directly onto the picture if it is mutable.
+     */
+    EmojiCompositor(EmojiAtlas atlas, Bitmap picture, boolean inPlace) {
+        mAtlas = atlas;
+        if (inPlace && picture.isMutable()) {
+            mResult = picture;
+        } else {
+            // The only full frame allocation of the whole pass
+            Bitmap.Config config = picture.getConfig() != null
+                    ? picture.getConfig() : Bitmap.Config.ARGB_8888;
+            mResult = picture.copy(config, true);
+        }
+    }
+
+    /**
+     * Draws an emoji over every face, in face order, in parallel bands when there are enough
+     * faces. Returns once every emoji is drawn.
+     *
+     * @param faces  The faces.
+     * @param emojis The emoji for each face.
+     * @param scale  How much wider than its face each emoji is.
+     */
+    void drawEmojis(List<DetectedFace> faces, List<Emojifier.Emoji> emojis, float scale) {
+        drawEmojis(faces, emojis, scale, bandCount(faces.size(), mResult.getHeight()));
+    }
+
+    /**
+     * Draws an emoji over every face, in face order, in a given number of bands.
+     *
+     * @param bands The number of bands, 1 to draw on the calling thread.
+     * @see #drawEmojis(List, List, float)
+     */
+    void drawEmojis(List<DetectedFace> faces, List<Emojifier.Emoji> emojis, float scale,
+            int bands) {
+        // Scale every emoji once, the bands only read the sprites
+        final EmojiAtlas.Sprite[] sprites = new EmojiAtlas.Sprite[faces.size()];
+        for (int i = 0; i < sprites.length; i++) {
+            DetectedFace face = faces.get(i);
+            sprites[i] = mAtlas.place(emojis.get(i), face.left, face.top, face.width,
+                    face.height, scale);
+        }
+
+        final int height = mResult.getHeight();
+        if (bands <= 1) {
+            blendRows(mResult, 0, sprites, 0, height, newBuffer(mResult.getWidth()));
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int top = (int) ((long) height * band / bands);
+            final int bottom = (int) ((long) height * (band + 1) / bands);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // A buffer per band: the rows of the bitmap each band writes never overlap
+                    blendRows(mResult, 0, sprites, top, bottom, newBuffer(mResult.getWidth()));
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Picks how many bands to split a picture into.
+     *
+     * @param faces  The number of faces.
+     * @param height The height of the picture.
+     * @return The number of bands, 1 to draw on the calling thread.
+     */
+    static int bandCount(int faces, int height) {
+        if (faces < PARALLEL_MIN_FACES || THREADS < 2) {
+            return 1;
+        }
+        return Math.max(1, Math.min(THREADS * BANDS_PER_THREAD, height / MIN_BAND_HEIGHT));
+    }
+
+    /**
+     * Returns a buffer for {@link #blendRows}, for a bitmap of the given width.
+     */
+    static int[] newBuffer(int width) {
+        return new int[Math.max(1, BUFFER_PIXELS / width) * width];
+    }
+
+    /**
+     * Blends, in face order, every sprite that reaches into the rows [top, bottom) of a
+     * bitmap. Rows without a sprite are neither read nor written.
+     *
+     * @param bitmap    The mutable bitmap to blend into.
+     * @param bitmapTop The row of the picture the first row of the bitmap holds, 0 unless the
+     *                  bitmap is a band of a larger picture.
+     * @param sprites   The sprites, positioned in the picture.
+     * @param top       The first row of the bitmap to blend.
+     * @param bottom    The row of the bitmap after the last one to blend.
+     * @param buffer    A buffer from {@link #newBuffer(int)}, used by one thread at a time.
+     * @return True if any sprite was blended.
+     */
+    static boolean blendRows(Bitmap bitmap, int bitmapTop, EmojiAtlas.Sprite[] sprites,
+            int top, int bottom, int[] buffer) {
+        int width = bitmap.getWidth();
+        int rowsPerPass = buffer.length / width;
+        boolean blended = false;
+        for (int passTop = top; passTop < bottom; passTop += rowsPerPass) {
+            int rows = Math.min(rowsPerPass, bottom - passTop);
+            int pictureTop = bitmapTop + passTop;
+            boolean read = false;
+            for (EmojiAtlas.Sprite sprite : sprites) {
+                if (!sprite.overlapsRows(pictureTop, pictureTop + rows)) {
+                    continue;
+                }
+                if (!read) {
+                    bitmap.getPixels(buffer, 0, width, 0, passTop, width, rows);
+                    read = true;
+                }
+                ArgbBlend.blendOver(buffer, width, rows, sprite.pixels, sprite.width,
+                        sprite.height, sprite.left, sprite.top - pictureTop);
+            }
+            if (read) {
+                bitmap.setPixels(buffer, 0, width, 0, passTop, width, rows);
+                blended = true;
+            }
+        }
+        return blended;
+    }
+
+    /**
+     * Runs the bands on the pool and waits for all of them.
+     */
+    private static void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : EXECUTOR.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while drawing emojis", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to draw emojis", e.getCause());
+        }
+    }
+
+    /**
+     * @return The bitmap that all emojis have been drawn onto.
+     */
+    Bitmap getResult() {
+        return mResult;
+    }
+}
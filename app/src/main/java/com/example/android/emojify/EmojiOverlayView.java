@@ -0,0 +1,165 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.View;
+
+import com.google.android.gms.vision.CameraSource;
+
+/**
+ * Draws an emoji over every tracked face of the live preview.
+ *
+ * Faces are updated from the detector thread and drawn on the main thread. Each emoji is
+ * a single filtered draw from the {@link EmojiAtlas}, so nothing is allocated per frame.
+ */
+public class EmojiOverlayView extends View {
+
+    private final SparseArray<TrackedFace> mFaces = new SparseArray<>();
+
+    private final RectF mBounds = new RectF();
+
+    private EmojiAtlas mAtlas;
+    private EmojiClassifier mClassifier;
+
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private boolean mMirrored;
+
+    public EmojiOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mAtlas = EmojiAtlas.getInstance(context);
+        mClassifier = EmojiClassifier.getInstance(context);
+    }
+
+    /**
+     * Sets the size of the camera frames and whether they are mirrored, which is needed to
+     * map face positions to the view.
+     *
+     * @param previewWidth  The width of the frames, as seen on screen.
+     * @param previewHeight The height of the frames, as seen on screen.
+     * @param facing        The {@link CameraSource} facing constant.
+     */
+    void setCameraInfo(int previewWidth, int previewHeight, int facing) {
+        synchronized (mFaces) {
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mMirrored = facing == CameraSource.CAMERA_FACING_FRONT;
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Updates a tracked face. May be called from any thread.
+     *
+     * @param face The face in frame coordinates.
+     */
+    void updateFace(DetectedFace face) {
+        synchronized (mFaces) {
+            TrackedFace tracked = mFaces.get(face.id);
+            if (tracked == null) {
+                tracked = new TrackedFace();
+                mFaces.put(face.id, tracked);
+            }
+            tracked.face = face;
+            tracked.visible = true;
+            // Hysteresis keeps the emoji steady while a probability hovers at a threshold
+            tracked.emoji = mClassifier.classify(face, tracked.emoji);
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Hides a face that was not found in the latest frame but may come back.
+     */
+    void hideFace(int id) {
+        synchronized (mFaces) {
+            TrackedFace tracked = mFaces.get(id);
+            if (tracked != null) {
+                tracked.visible = false;
+            }
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Forgets a face that is no longer tracked.
+     */
+    void removeFace(int id) {
+        synchronized (mFaces) {
+            mFaces.remove(id);
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Forgets every face.
+     */
+    void clear() {
+        synchronized (mFaces) {
+            mFaces.clear();
+        }
+        postInvalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        synchronized (mFaces) {
+            if (mPreviewWidth == 0 || mPreviewHeight == 0) {
+                return;
+            }
+            float scaleX = (float) getWidth() / mPreviewWidth;
+            float scaleY = (float) getHeight() / mPreviewHeight;
+
+            for (int i = 0; i < mFaces.size(); i++) {
+                TrackedFace tracked = mFaces.valueAt(i);
+                if (!tracked.visible) {
+                    continue;
+                }
+                DetectedFace face = tracked.face;
+
+                float faceWidth = face.width * scaleX;
+                float faceHeight = face.height * scaleY;
+                float faceX = face.left * scaleX;
+                if (mMirrored) {
+                    faceX = getWidth() - faceX - faceWidth;
+                }
+                float faceY = face.top * scaleY;
+
+                mAtlas.layout(tracked.emoji, faceX, faceY, faceWidth, faceHeight,
+                        Emojifier.EMOJI_SCALE_FACTOR, mBounds);
+                mAtlas.draw(canvas, tracked.emoji, mBounds);
+            }
+        }
+    }
+
+    /**
+     * The state kept for one tracked face.
+     */
+    private static class TrackedFace {
+
+        DetectedFace face;
+        boolean visible;
+        Emojifier.Emoji emoji;
+    }
+}
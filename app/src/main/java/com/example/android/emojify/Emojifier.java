@@ -1,30 +1,25 @@
 package com.example.android.emojify;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
-import android.widget.Toast;
 
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.face.Face;
-import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class Emojifier {
 
     private static final String TAG = Emojifier.class.getSimpleName();
 
-    private static final float EMOJI_SCALE_FACTOR = 1f;
+    static final float EMOJI_SCALE_FACTOR = 1f;
 
-    private static final double LEFT_EYE_OPEN_THRESHOLD = 0.5;
-    private static final double RIGHT_EYE_OPEN_THRESHOLD = 0.5;
-    private static final double SMILING_THRESHOLD = 0.5;
+    // Faces are detected on a copy of the picture no larger than this, 0 disables the proxy
+    static final int DETECTION_PROXY_MAX_DIMENSION = 640;
 
     /**
      * Method for detecting faces in a bitmap.
@@ -34,226 +29,360 @@ public class Emojifier {
      */
     static Bitmap detectFacesAndOverlayEmoji(Context context, Bitmap picture)
     {
-        // Create the face detector, disable tracking and enable classifications
-        FaceDetector detector = new FaceDetector.Builder(context)
-                .setTrackingEnabled(false)
-                .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
-                .build();
-
-        if (!detector.isOperational()) {
-            // The face detector is not operational.
-            Toast.makeText(context, R.string.detector_not_operational, Toast.LENGTH_SHORT).show();
-            Log.d(TAG, "The required native library to do face detection is not available");
-
-
-            // Check for low storage.  If there is low storage, the native library will not be
-            // downloaded, so detection will not become operational.
-            IntentFilter lowstorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
-            boolean hasLowStorage = context.registerReceiver(null, lowstorageFilter) != null;
-
-            if (hasLowStorage) {
-                Toast.makeText(context, R.string.low_storage_error, Toast.LENGTH_LONG).show();
-                Log.d(TAG, context.getString(R.string.low_storage_error));
-            }
-        }
+        return detectFacesAndOverlayEmoji(context, picture, false);
+    }
 
-        // Build the frame
-        Frame frame = new Frame.Builder().setBitmap(picture).build();
+    /**
+     * Method for detecting faces in a bitmap.
+     *
+     * @param context The application context.
+     * @param picture The picture in which to detect the faces.
+     * @param inPlace True to draw the emojis directly onto the picture when it is mutable,
+     *                instead of onto a copy.
+     */
+    static Bitmap detectFacesAndOverlayEmoji(Context context, Bitmap picture, boolean inPlace)
+    {
+        List<DetectedFace> faces = detectFaces(context, picture);
+        return overlayEmoji(context, picture, faces, classify(context, faces), inPlace);
+    }
 
-        // Detect the faces
-        SparseArray<Face> faces = detector.detect(frame);
+    /**
+     * Detects the faces in a bitmap. Safe to call from any thread.
+     *
+     * @param context The application context.
+     * @param picture The picture in which to detect the faces.
+     * @return The detected faces, empty if there are none or the detector is not ready.
+     */
+    static List<DetectedFace> detectFaces(Context context, Bitmap picture)
+    {
+        return detectFaces(context, picture, DetectorPolicy.Hints.DEFAULT);
+    }
 
-        int numFaces = faces.size();
+    /**
+     * Detects the faces in a bitmap, with what the caller knows about it. Safe to call from
+     * any thread.
+     *
+     * A picture without a face count hint gets the cheap selfie pass first, the prominent
+     * face at selfie size, and is only searched with the configuration for unknown pictures
+     * when that pass finds no selfie. Pictures that were seen before with the same detector
+     * configuration are looked up in the {@link DetectionCache} instead.
+     *
+     * @param context The application context.
+     * @param picture The picture in which to detect the faces.
+     * @param hints   The number of faces the caller expects and its latency budget.
+     * @return The detected faces, empty if there are none or the detector is not ready.
+     */
+    static List<DetectedFace> detectFaces(Context context, Bitmap picture,
+            DetectorPolicy.Hints hints)
+    {
+        float proxyScale = proxyScale(picture, DETECTION_PROXY_MAX_DIMENSION);
+        int proxyWidth = proxyDimension(picture.getWidth(), proxyScale);
+        int proxyHeight = proxyDimension(picture.getHeight(), proxyScale);
+        DetectorPolicy policy = DetectorPolicy.getInstance(context);
 
-        // Log the number of faces
-        Log.d(TAG, "Number of faces detected: " + numFaces);
+        List<DetectedFace> faces;
+        if (hints.faceCount == DetectorPolicy.FaceCountHint.UNKNOWN)
+        {
+            faces = detectFacesCached(context, picture, policy.choose(proxyWidth, proxyHeight,
+                    DetectorPolicy.FaceCountHint.SINGLE), false);
+            if (DetectorPolicy.isSelfie(faces, picture.getWidth()))
+            {
+                EmojifyMetrics.recordFaces(faces.size());
+                return faces;
+            }
+        }
+        faces = detectFacesCached(context, picture,
+                policy.choose(proxyWidth, proxyHeight, hints), true);
+        EmojifyMetrics.recordFaces(faces.size());
+        return faces;
+    }
 
-        // Initialize result bitmap to original picture
-        Bitmap resultBitmap = picture;
+    /**
+     * Looks the faces of a picture up in the {@link DetectionCache}, or detects and caches
+     * them.
+     *
+     * @param retry True to search again when the configuration finds no faces, see
+     *              {@link #detectFacesAtScale}.
+     */
+    private static List<DetectedFace> detectFacesCached(Context context, Bitmap picture,
+            DetectorConfig config, boolean retry)
+    {
+        DetectionCache cache = DetectionCache.getInstance(context);
+        long key = DetectionCache.keyOf(picture, config);
+        DetectionCache.Entry entry = cache.get(key);
+        if (entry != null && entry.width == picture.getWidth()
+                && entry.height == picture.getHeight())
+        {
+            EmojifyMetrics.count(EmojifyMetrics.Counter.DETECTION_CACHE_HITS, 1);
+            return entry.faces;
+        }
+        EmojifyMetrics.count(EmojifyMetrics.Counter.DETECTION_CACHE_MISSES, 1);
 
-        // If there are no faces detected, show a Toast message
-        if (numFaces == 0)
+        List<DetectedFace> faces = detectFacesAtScale(context, picture, config,
+                DETECTION_PROXY_MAX_DIMENSION, retry);
+
+        // An unready detector finds nothing, which must not be remembered as "no faces", and
+        // neither may a pass without the retry, which a caller of the same config expects
+        if (FaceDetectorManager.getInstance(context).isReady() && (retry || !faces.isEmpty()))
         {
-            Toast.makeText(context, R.string.no_faces_detected, Toast.LENGTH_SHORT).show();
+            cache.put(key, new DetectionCache.Entry(picture.getWidth(), picture.getHeight(),
+                    faces));
         }
-        else
+        return faces;
+    }
+
+    /**
+     * Detects the faces in a bitmap, on a downscaled proxy when the picture is larger than
+     * the proxy size. The faces are mapped back to the coordinates of the picture. If the
+     * proxy has no faces, which happens when they are too small at that scale, detection is
+     * repeated at full resolution.
+     *
+     * When the configuration finds no faces, the last pass uses the thorough
+     * {@link DetectorConfig#STILL_IMAGE} instead.
+     *
+     * @param context           The application context.
+     * @param picture           The picture in which to detect the faces.
+     * @param config            The configuration of the first pass, picked by the
+     *                          {@link DetectorPolicy} for the size it runs at.
+     * @param proxyMaxDimension The largest side of the proxy, 0 to always use the picture.
+     * @param retry             False to return what the first pass finds, without the
+     *                          full resolution or still image pass.
+     * @return The detected faces, in the coordinates of the picture.
+     */
+    private static List<DetectedFace> detectFacesAtScale(Context context, Bitmap picture,
+            DetectorConfig config, int proxyMaxDimension, boolean retry)
+    {
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        float scale = proxyScale(picture, proxyMaxDimension);
+
+        if (scale < 1f)
         {
-            Bitmap emojiBitmap;
-            Resources res = context.getResources();
+            int proxyWidth = proxyDimension(width, scale);
+            int proxyHeight = proxyDimension(height, scale);
+            Bitmap proxy = Bitmap.createScaledBitmap(picture, proxyWidth, proxyHeight, true);
 
-            // Iterate through the faces
-            for (int i = 0; i < numFaces; i++)
+            List<DetectedFace> proxyFaces = runDetector(context, proxy, config);
+            if (proxy != picture)
             {
-                Face thisFace = faces.valueAt(i);
+                proxy.recycle();
+            }
 
-                // Get the appropriate emoji for each face
-                switch(whichEmoji(thisFace))
+            if (!proxyFaces.isEmpty())
+            {
+                float scaleX = (float) width / proxyWidth;
+                float scaleY = (float) height / proxyHeight;
+                List<DetectedFace> faces = new ArrayList<>(proxyFaces.size());
+                for (DetectedFace face : proxyFaces)
                 {
-                    case SMILE:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.smile);
-                        break;
-                    case FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.frown);
-                        break;
-                    case LEFT_WINK:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.leftwink);
-                        break;
-                    case RIGHT_WINK:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.rightwink);
-                        break;
-                    case LEFT_WINK_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.leftwinkfrown);
-                        break;
-                    case RIGHT_WINK_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.rightwinkfrown);
-                        break;
-                    case CLOSED_EYE_SMILE:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.closed_smile);
-                        break;
-                    case CLOSED_EYE_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.closed_frown);
-                        break;
-                    default:
-                        // default to smile drawable
-                        emojiBitmap = BitmapFactory.decodeResource(res, R.drawable.smile);
-                        Toast.makeText(context, R.string.no_emoji, Toast.LENGTH_SHORT).show();
-                        Log.d(TAG, "No emoji expression found. Using smile emoji.");
+                    faces.add(face.scale(scaleX, scaleY));
                 }
+                return faces;
+            }
 
-                // Add the emojiBitmap to the proper position in the original image
-                resultBitmap = addBitmapToFace(resultBitmap, emojiBitmap, thisFace);
+            // Without a working detector the full resolution pass would not find faces either
+            if (!retry || !FaceDetectorManager.getInstance(context).isReady())
+            {
+                return proxyFaces;
             }
+            Log.d(TAG, "No faces at " + proxyWidth + "x" + proxyHeight
+                    + ", retrying at " + width + "x" + height);
+            return runDetector(context, picture, DetectorConfig.STILL_IMAGE);
         }
 
-        // Release the detector object once it is no longer needed
-        detector.release();
-
-        return resultBitmap;
+        List<DetectedFace> faces = runDetector(context, picture, config);
+        if (retry && faces.isEmpty() && !config.equals(DetectorConfig.STILL_IMAGE)
+                && FaceDetectorManager.getInstance(context).isReady())
+        {
+            Log.d(TAG, "No faces with " + config + ", retrying with the default detector");
+            faces = runDetector(context, picture, DetectorConfig.STILL_IMAGE);
+        }
+        return faces;
     }
 
     /**
-     * Method for logging the classification probabilities.
-     *
-     * Determines the closest emoji to the expression on the face, based on the
-     * odds that the person is smiling and has each eye open.
-     *
-     * @param face The face for which you pick an emoji.
+     * @return The scale of the detection proxy of a picture, 1 if the picture is used as is.
      */
-    private static Emoji whichEmoji(Face face)
+    private static float proxyScale(Bitmap picture, int proxyMaxDimension)
     {
-        float leftEyeOpenProb = face.getIsLeftEyeOpenProbability();
-        float rightEyeOpenProb = face.getIsRightEyeOpenProbability();
-        float smilingProb = face.getIsSmilingProbability();
-
-        // Log all the probabilities
-        Log.d(TAG, "Probability left eye open: " + leftEyeOpenProb);
-        Log.d(TAG, "Probability right eye open: " + rightEyeOpenProb);
-        Log.d(TAG, "Probability smiling: " + smilingProb);
-
-        boolean leftEyeOpen;
-        boolean rightEyeOpen;
-        boolean smiling;
-
-        leftEyeOpen = leftEyeOpenProb > LEFT_EYE_OPEN_THRESHOLD;
-        rightEyeOpen = rightEyeOpenProb > RIGHT_EYE_OPEN_THRESHOLD;
-        smiling = smilingProb > SMILING_THRESHOLD;
-
-        // Determine and log the appropriate emoji
-        Emoji emoji;
-        if (leftEyeOpen && rightEyeOpen && smiling)
-        {
-             emoji = Emoji.SMILE;
-        }
-        else if (leftEyeOpen && rightEyeOpen && !smiling)
+        int maxDimension = Math.max(picture.getWidth(), picture.getHeight());
+        if (proxyMaxDimension > 0 && maxDimension > proxyMaxDimension)
         {
-            emoji = Emoji.FROWN;
+            return (float) proxyMaxDimension / maxDimension;
         }
-        else if (!leftEyeOpen && rightEyeOpen && smiling)
-        {
-            emoji = Emoji.LEFT_WINK;
-        }
-        else if (leftEyeOpen && !rightEyeOpen && smiling)
-        {
-            emoji = Emoji.RIGHT_WINK;
-        }
-        else if (!leftEyeOpen && rightEyeOpen && !smiling)
-        {
-            emoji = Emoji.LEFT_WINK_FROWN;
-        }
-        else if (leftEyeOpen && !rightEyeOpen && !smiling)
-        {
-            emoji = Emoji.RIGHT_WINK_FROWN;
-        }
-        else if (!leftEyeOpen && !rightEyeOpen && smiling)
-        {
-            emoji = Emoji.CLOSED_EYE_SMILE;
-        }
-        else if (!leftEyeOpen && !rightEyeOpen && !smiling)
-        {
-            emoji = Emoji.CLOSED_EYE_FROWN;
+        return 1f;
+    }
+
+    private static int proxyDimension(int dimension, float scale)
+    {
+        return scale < 1f ? Math.max(1, Math.round(dimension * scale)) : dimension;
+    }
+
+    /**
+     * Runs a shared detector over a bitmap, and reports its timing to the detector policy.
+     */
+    private static List<DetectedFace> runDetector(Context context, Bitmap picture,
+            DetectorConfig config)
+    {
+        // Get the shared detector, the default one is built and warmed up at app start
+        long start = EmojifyMetrics.begin();
+        FaceDetectorManager detectorManager = FaceDetectorManager.getInstance(context);
+        FaceDetectorManager.Lease lease = detectorManager.acquire(config);
+        EmojifyMetrics.end(EmojifyMetrics.Stage.DETECTOR_ACQUIRE, start);
+
+        SparseArray<Face> faces;
+        long detectMillis;
+        try {
+            if (!detectorManager.isReady()) {
+                Log.d(TAG, "Face detector is not ready: " + detectorManager.getState());
+            }
+
+            // Build the frame
+            start = EmojifyMetrics.begin();
+            long detectStart = SystemClock.elapsedRealtime();
+            Frame frame = new Frame.Builder().setBitmap(picture).build();
+
+            // Detect the faces, the lease keeps the detector from being released meanwhile
+            synchronized (lease.detector) {
+                faces = lease.detector.detect(frame);
+            }
+            detectMillis = SystemClock.elapsedRealtime() - detectStart;
+            EmojifyMetrics.end(EmojifyMetrics.Stage.DETECT, start);
+        } finally {
+            detectorManager.release(lease);
         }
-        else
+
+        int numFaces = faces.size();
+        if (detectorManager.isReady())
         {
-            // default emoji is smiling
-            emoji = Emoji.SMILE;
+            DetectorPolicy policy = DetectorPolicy.getInstance(context);
+            policy.record(config, picture.getWidth(), picture.getHeight(), detectMillis,
+                    numFaces);
+            Log.d(TAG, policy.toString());
         }
 
-        // Log the chosen Emoji
-        Log.d(TAG, "Emoji is " + emoji.name());
+        // Log the number of faces
+        Log.d(TAG, "Number of faces detected: " + numFaces);
 
-        return emoji;
+        List<DetectedFace> detectedFaces = new ArrayList<>(numFaces);
+        for (int i = 0; i < numFaces; i++)
+        {
+            detectedFaces.add(DetectedFace.from(faces.valueAt(i)));
+        }
+        return detectedFaces;
     }
 
-    // Enum for all possible Emojis
-    private enum Emoji {
-        SMILE,
-        FROWN,
-        LEFT_WINK,
-        RIGHT_WINK,
-        LEFT_WINK_FROWN,
-        RIGHT_WINK_FROWN,
-        CLOSED_EYE_SMILE,
-        CLOSED_EYE_FROWN
+    /**
+     * Picks the emoji for each face with the thresholds of the app.
+     *
+     * @param context The application context.
+     * @param faces   The detected faces.
+     * @return The emojis, in the same order as the faces.
+     */
+    static List<Emoji> classify(Context context, List<DetectedFace> faces)
+    {
+        return classify(faces, EmojiClassifier.getInstance(context));
     }
 
-
     /**
-     * Combines the original picture with the emoji bitmaps
+     * Picks the emoji for each face with the given thresholds.
      *
-     * @param backgroundBitmap The original picture
-     * @param emojiBitmap      The chosen emoji
-     * @param face             The detected face
-     * @return The final bitmap, including the emojis over the faces
+     * @param faces      The detected faces.
+     * @param classifier The thresholds to use.
+     * @return The emojis, in the same order as the faces.
      */
-    private static Bitmap addBitmapToFace(Bitmap backgroundBitmap, Bitmap emojiBitmap, Face face) {
+    static List<Emoji> classify(List<DetectedFace> faces, EmojiClassifier classifier)
+    {
+        long start = EmojifyMetrics.begin();
+        List<Emoji> emojis = new ArrayList<>(faces.size());
+        for (DetectedFace face : faces)
+        {
+            emojis.add(classifier.classify(face));
+        }
+        EmojifyMetrics.end(EmojifyMetrics.Stage.CLASSIFY, start);
+        return emojis;
+    }
 
-        // Initialize the results bitmap to be a mutable copy of the original image
-        Bitmap resultBitmap = Bitmap.createBitmap(backgroundBitmap.getWidth(),
-                backgroundBitmap.getHeight(), backgroundBitmap.getConfig());
+    /**
+     * Draws the emojis over the faces in a single pass, split across cores for crowds.
+     *
+     * @param context The application context.
+     * @param picture The picture the faces were detected in.
+     * @param faces   The detected faces.
+     * @param emojis  The emoji for each face.
+     * @param inPlace True to draw directly onto the picture when it is mutable.
+     * @return The picture with the emojis, or the picture itself if there are no faces.
+     */
+    static Bitmap overlayEmoji(Context context, Bitmap picture, List<DetectedFace> faces,
+            List<Emoji> emojis, boolean inPlace)
+    {
+        return overlayEmoji(context, picture, faces, emojis, EMOJI_SCALE_FACTOR, inPlace);
+    }
 
-        // Scale the emoji so it looks better on the face
-        float scaleFactor = EMOJI_SCALE_FACTOR;
+    /**
+     * Draws the emojis over the faces in a single pass, at a given size.
+     *
+     * @param scale How much wider than its face each emoji is.
+     * @see #overlayEmoji(Context, Bitmap, List, List, boolean)
+     */
+    static Bitmap overlayEmoji(Context context, Bitmap picture, List<DetectedFace> faces,
+            List<Emoji> emojis, float scale, boolean inPlace)
+    {
+        // If there are no faces detected, there is nothing to draw
+        if (faces.isEmpty())
+        {
+            return picture;
+        }
 
-        // Determine the size of the emoji to match the width of the face and preserve aspect ratio
-        int newEmojiWidth = (int) (face.getWidth() * scaleFactor);
-        int newEmojiHeight = (int) (emojiBitmap.getHeight() *
-                newEmojiWidth / emojiBitmap.getWidth() * scaleFactor);
+        // The atlas is only built by the first call
+        long spriteStart = EmojifyMetrics.begin();
+        EmojiAtlas atlas = EmojiAtlas.getInstance(context);
+        EmojifyMetrics.end(EmojifyMetrics.Stage.SPRITE_LOAD, spriteStart);
+        return overlayEmoji(atlas, picture, faces, emojis, scale, inPlace);
+    }
 
+    /**
+     * Draws the emojis over the faces in a single pass, from a given atlas.
+     *
+     * @param atlas The atlas to draw the emojis from.
+     * @see #overlayEmoji(Context, Bitmap, List, List, float, boolean)
+     */
+    static Bitmap overlayEmoji(EmojiAtlas atlas, Bitmap picture, List<DetectedFace> faces,
+            List<Emoji> emojis, float scale, boolean inPlace)
+    {
+        if (faces.isEmpty())
+        {
+            return picture;
+        }
 
-        // Scale the emoji
-        emojiBitmap = Bitmap.createScaledBitmap(emojiBitmap, newEmojiWidth, newEmojiHeight, false);
+        long start = EmojifyMetrics.begin();
+        EmojiCompositor compositor = new EmojiCompositor(atlas, picture, inPlace);
 
-        // Determine the emoji position so it best lines up with the face
-        float emojiPositionX =
-                (face.getPosition().x + face.getWidth() / 2) - emojiBitmap.getWidth() / 2;
-        float emojiPositionY =
-                (face.getPosition().y + face.getHeight() / 2) - emojiBitmap.getHeight() / 3;
+        // Draw the appropriate emoji over each face, scaled to the face width
+        compositor.drawEmojis(faces, emojis, scale);
 
-        // Create the canvas and draw the bitmaps to it
-        Canvas canvas = new Canvas(resultBitmap);
-        canvas.drawBitmap(backgroundBitmap, 0, 0, null);
-        canvas.drawBitmap(emojiBitmap, emojiPositionX, emojiPositionY, null);
+        Bitmap result = compositor.getResult();
+        EmojifyMetrics.end(EmojifyMetrics.Stage.COMPOSITE, start,
+                result != picture ? result.getByteCount() : 0);
+        return result;
+    }
 
-        return resultBitmap;
+    // Enum for all possible Emojis and the drawables that show them
+    enum Emoji {
+        SMILE(R.drawable.smile),
+        FROWN(R.drawable.frown),
+        LEFT_WINK(R.drawable.leftwink),
+        RIGHT_WINK(R.drawable.rightwink),
+        LEFT_WINK_FROWN(R.drawable.leftwinkfrown),
+        RIGHT_WINK_FROWN(R.drawable.rightwinkfrown),
+        CLOSED_EYE_SMILE(R.drawable.closed_smile),
+        CLOSED_EYE_FROWN(R.drawable.closed_frown);
+
+        final int drawableRes;
+
+        Emoji(int drawableRes) {
+            this.drawableRes = drawableRes;
+        }
     }
+
 }
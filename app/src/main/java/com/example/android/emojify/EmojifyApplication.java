@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Warms up the face detector at app start and releases it when memory runs low. Caches
+ * are sized by the {@link MemoryBudget}, which also trims them on memory pressure.
+ *
+ * Also listens for metrics broadcasts, so they can be driven from adb in any build:
+ * <pre>
+ * adb shell am broadcast -a com.example.android.emojify.action.SET_METRICS_ENABLED --ez enabled true
+ * adb shell am broadcast -a com.example.android.emojify.action.DUMP_METRICS
+ * </pre>
+ * A metrics dump also logs the memory budget usage. Only senders holding DUMP, such as the
+ * shell, are heard, so other apps cannot toggle metrics or trigger file writes.
+ *
+ * At start the temporary files left behind by a process that died are deleted in the
+ * background.
+ */
+public class EmojifyApplication extends Application {
+
+    private static final String TAG = EmojifyApplication.class.getSimpleName();
+
+    static final String ACTION_DUMP_METRICS = "com.example.android.emojify.action.DUMP_METRICS";
+    static final String ACTION_SET_METRICS_ENABLED =
+            "com.example.android.emojify.action.SET_METRICS_ENABLED";
+    static final String EXTRA_ENABLED = "enabled";
+
+    // Written to the app's files directory on every dump
+    private static final String METRICS_FILE_NAME = "emojify-metrics.txt";
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        FaceDetectorManager.getInstance(this).warmUp();
+        MemoryBudget budget = MemoryBudget.getInstance(this);
+        BitmapPool.setMaxSize(budget.bitmapPoolSize());
+        BitmapPool.setMaxBitmapBytes(budget.maxPooledBitmapBytes());
+        sweepTempFiles();
+
+        IntentFilter metricsFilter = new IntentFilter(ACTION_DUMP_METRICS);
+        metricsFilter.addAction(ACTION_SET_METRICS_ENABLED);
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (ACTION_SET_METRICS_ENABLED.equals(intent.getAction())) {
+                    EmojifyMetrics.setEnabled(intent.getBooleanExtra(EXTRA_ENABLED, true));
+                    return;
+                }
+                EmojifyMetrics.dumpToLog();
+                Log.i(TAG, MemoryBudget.getInstance(context).describeUsage(context));
+                File file = new File(getFilesDir(), METRICS_FILE_NAME);
+                try {
+                    EmojifyMetrics.dumpToFile(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write " + file, e);
+                }
+            }
+        }, metricsFilter, Manifest.permission.DUMP, null);
+    }
+
+    /**
+     * Deletes orphaned captures and exports on a background thread.
+     */
+    private void sweepTempFiles() {
+        final Context context = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                BitmapUtils.deleteOrphanedTempFiles(context);
+            }
+        }, TAG + "-sweeper").start();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryBudget.getInstance(this).onTrimMemory(this, TRIM_MEMORY_COMPLETE);
+        FaceDetectorManager.getInstance(this).releaseAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryBudget.getInstance(this).onTrimMemory(this, level);
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            FaceDetectorManager.getInstance(this).releaseAll();
+        }
+    }
+
+    @Override
+    public void onTerminate() {
+        FaceDetectorManager.getInstance(this).releaseAll();
+        super.onTerminate();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * In-process latency and memory metrics for the emojify path.
+ *
+ * Each {@link Stage} keeps a histogram of wall times and of the bytes it allocated for
+ * bitmaps and buffers, and each {@link Counter} a running total. When disabled, recording
+ * costs one volatile read, so the calls stay compiled into release builds.
+ *
+ * <pre>
+ * long start = EmojifyMetrics.begin();
+ * ... do the work ...
+ * EmojifyMetrics.end(EmojifyMetrics.Stage.DETECT, start);
+ * </pre>
+ */
+class EmojifyMetrics {
+
+    private static final String TAG = EmojifyMetrics.class.getSimpleName();
+
+    /**
+     * The timed stages of the emojify path.
+     */
+    enum Stage {
+        DECODE,
+        DETECTOR_ACQUIRE,
+        DETECT,
+        CLASSIFY,
+        SPRITE_LOAD,
+        COMPOSITE,
+        ENCODE
+    }
+
+    /**
+     * Running totals.
+     */
+    enum Counter {
+        IMAGES,
+        FACES,
+        DETECTION_CACHE_HITS,
+        DETECTION_CACHE_MISSES
+    }
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    private static final Histogram[] sStageNanos = new Histogram[Stage.values().length];
+    private static final Histogram[] sStageBytes = new Histogram[Stage.values().length];
+    private static final Histogram sFacesPerImage = new Histogram();
+    private static final long[] sCounters = new long[Counter.values().length];
+
+    static {
+        for (int i = 0; i < sStageNanos.length; i++) {
+            sStageNanos[i] = new Histogram();
+            sStageBytes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Turns recording on or off. Recorded values are kept.
+     */
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Starts timing a stage.
+     *
+     * @return The start time to pass to {@link #end}, or 0 when metrics are disabled.
+     */
+    static long begin() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the wall time of a stage that allocated nothing worth tracking.
+     *
+     * @param stage      The stage that finished.
+     * @param startNanos The value returned by {@link #begin()}.
+     */
+    static void end(Stage stage, long startNanos) {
+        end(stage, startNanos, 0);
+    }
+
+    /**
+     * Records the wall time of a stage and the bytes it allocated.
+     *
+     * @param stage          The stage that finished.
+     * @param startNanos     The value returned by {@link #begin()}.
+     * @param allocatedBytes The bytes the stage allocated for bitmaps and buffers.
+     */
+    static void end(Stage stage, long startNanos, long allocatedBytes) {
+        if (startNanos == 0 || !sEnabled) {
+            return;
+        }
+        sStageNanos[stage.ordinal()].record(System.nanoTime() - startNanos);
+        sStageBytes[stage.ordinal()].record(allocatedBytes);
+    }
+
+    /**
+     * Adds to a counter.
+     */
+    static void count(Counter counter, long delta) {
+        if (!sEnabled) {
+            return;
+        }
+        synchronized (sCounters) {
+            sCounters[counter.ordinal()] += delta;
+        }
+    }
+
+    /**
+     * Records the number of faces found in one image.
+     */
+    static void recordFaces(int faces) {
+        if (!sEnabled) {
+            return;
+        }
+        sFacesPerImage.record(faces);
+        count(Counter.IMAGES, 1);
+        count(Counter.FACES, faces);
+    }
+
+    /**
+     * Clears every recorded value.
+     */
+    static void reset() {
+        for (int i = 0; i < sStageNanos.length; i++) {
+            sStageNanos[i].reset();
+            sStageBytes[i].reset();
+        }
+        sFacesPerImage.reset();
+        synchronized (sCounters) {
+            for (int i = 0; i < sCounters.length; i++) {
+                sCounters[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return A table of every stage's percentiles and every counter.
+     */
+    static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%-17s %7s %9s %9s %9s %12s%n",
+                "stage", "count", "p50(ms)", "p95(ms)", "p99(ms)", "p50(bytes)"));
+        for (Stage stage : Stage.values()) {
+            Histogram nanos = sStageNanos[stage.ordinal()];
+            Histogram bytes = sStageBytes[stage.ordinal()];
+            builder.append(String.format(Locale.US, "%-17s %7d %9.2f %9.2f %9.2f %12d%n",
+                    stage.name(), nanos.count(),
+                    nanos.percentile(50) / 1e6, nanos.percentile(95) / 1e6,
+                    nanos.percentile(99) / 1e6, bytes.percentile(50)));
+        }
+        builder.append(String.format(Locale.US, "faces/image p50=%d p95=%d p99=%d%n",
+                sFacesPerImage.percentile(50), sFacesPerImage.percentile(95),
+                sFacesPerImage.percentile(99)));
+        synchronized (sCounters) {
+            for (Counter counter : Counter.values()) {
+                builder.append(counter.name()).append('=')
+                        .append(sCounters[counter.ordinal()]).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes {@link #dump()} to logcat.
+     */
+    static void dumpToLog() {
+        for (String line : dump().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    /**
+     * Writes {@link #dump()} to a file, replacing its contents.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    static void dumpToFile(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(dump());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A fixed-size histogram of non-negative values. Buckets are powers of two split into four
+     * linear sub-buckets, so percentiles are accurate to within 25% and recording never
+     * allocates.
+     */
+    static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final long[] mCounts = new long[BUCKETS];
+        private long mTotal;
+
+        synchronized void record(long value) {
+            mCounts[bucketOf(Math.max(0, value))]++;
+            mTotal++;
+        }
+
+        synchronized long count() {
+            return mTotal;
+        }
+
+        /**
+         * @param percentile A percentile between 0 and 100.
+         * @return The upper bound of the bucket holding that percentile, 0 if empty.
+         */
+        synchronized long percentile(double percentile) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mTotal);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return upperBoundOf(i);
+                }
+            }
+            return upperBoundOf(BUCKETS - 1);
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts[i] = 0;
+            }
+            mTotal = 0;
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the emojify stages (decode, detect, classify, composite) on a bounded background
+ * executor and publishes the result on the main thread.
+ *
+ * Each photo is a {@link Job}. A cancelled job stops at the next stage boundary and never
+ * reaches its callback, so the main thread only ever sets a finished bitmap.
+ */
+class EmojifyPipeline {
+
+    private static final String TAG = EmojifyPipeline.class.getSimpleName();
+
+    private static final int WORKER_THREADS = 2;
+    private static final int MAX_QUEUED_JOBS = 4;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_JOBS), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "EmojifyPipeline");
+                }
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * The stages a job goes through.
+     */
+    enum Stage {
+        DECODE,
+        DETECT,
+        CLASSIFY,
+        COMPOSITE,
+        PUBLISH
+    }
+
+    /**
+     * Receives the progress and result of a job. Every method is called on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * Called when the job starts a new stage.
+         */
+        void onStageChanged(Stage stage);
+
+        /**
+         * Called with the finished result.
+         */
+        void onComplete(Result result);
+
+        /**
+         * Called if a stage fails.
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * The output of a finished job.
+     */
+    static class Result {
+
+        final Bitmap bitmap;
+        // The decoded picture without emojis, the same bitmap when there are no faces
+        final Bitmap source;
+        final List<DetectedFace> faces;
+        final List<Emojifier.Emoji> emojis;
+
+        Result(Bitmap bitmap, Bitmap source, List<DetectedFace> faces,
+                List<Emojifier.Emoji> emojis) {
+            this.bitmap = bitmap;
+            this.source = source;
+            this.faces = faces;
+            this.emojis = emojis;
+        }
+    }
+
+    /**
+     * Handle to a running job.
+     */
+    static class Job implements Runnable {
+
+        private final Context mContext;
+        private final String mImagePath;
+        private final Callback mCallback;
+
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        private Job(Context context, String imagePath, Callback callback) {
+            mContext = context.getApplicationContext();
+            mImagePath = imagePath;
+            mCallback = callback;
+        }
+
+        /**
+         * Stops the job at the next stage boundary. The callback is not called again.
+         * Must be called on the main thread.
+         */
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Resample the saved image to fit the ImageView
+                enterStage(Stage.DECODE);
+                Bitmap picture = BitmapUtils.resamplePic(mContext, mImagePath);
+                if (picture == null) {
+                    throw new IllegalStateException("Could not decode " + mImagePath);
+                }
+
+                // Detect the faces
+                enterStage(Stage.DETECT);
+                List<DetectedFace> faces = Emojifier.detectFaces(mContext, picture);
+
+                // Pick an emoji for each face
+                enterStage(Stage.CLASSIFY);
+                List<Emojifier.Emoji> emojis = Emojifier.classify(mContext, faces);
+
+                // Overlay the emojis onto a copy, the clean picture is kept for editing
+                enterStage(Stage.COMPOSITE);
+                Bitmap result = Emojifier.overlayEmoji(mContext, picture, faces, emojis, false);
+
+                enterStage(Stage.PUBLISH);
+                publish(new Result(result, picture, faces, emojis));
+            } catch (CancellationException e) {
+                Log.d(TAG, "Job cancelled for " + mImagePath);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Emojify failed for " + mImagePath, e);
+                fail(e);
+            } catch (OutOfMemoryError e) {
+                // Give the memory of the pooled buffers back before the user tries again
+                Log.e(TAG, "Out of memory emojifying " + mImagePath, e);
+                BitmapPool.clear();
+                fail(new IllegalStateException("Out of memory emojifying " + mImagePath, e));
+            }
+        }
+
+        /**
+         * Reports a failed stage.
+         */
+        private void fail(final Exception e) {
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mCallback.onError(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Throws if the job was cancelled, otherwise reports the new stage.
+         */
+        private void enterStage(final Stage stage) {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mCallback.onStageChanged(stage);
+                    }
+                }
+            });
+        }
+
+        private void publish(final Result result) {
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mCallback.onComplete(result);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts emojifying a photo in the background. Must be called on the main thread.
+     *
+     * @param context   The application context.
+     * @param imagePath The path of the captured photo.
+     * @param callback  Receives progress and the result on the main thread.
+     * @return The job, which can be cancelled.
+     */
+    static Job start(Context context, String imagePath, Callback callback) {
+        final Job job = new Job(context, imagePath, callback);
+        try {
+            job.mFuture = EXECUTOR.submit(job);
+        } catch (final RejectedExecutionException e) {
+            Log.e(TAG, "Too many jobs queued, dropping " + imagePath, e);
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!job.isCancelled()) {
+                        job.mCallback.onError(e);
+                    }
+                }
+            });
+        }
+        return job;
+    }
+}
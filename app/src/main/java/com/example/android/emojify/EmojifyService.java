@@ -0,0 +1,479 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.v4.content.FileProvider;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Bound service that emojifies photos for other apps and test harnesses, without the UI.
+ *
+ * Clients bind, then send {@link #MSG_EMOJIFY} messages to the returned {@link Messenger},
+ * with a request id in {@code arg1}, a reply {@code Messenger} and either a content URI
+ * ({@link #KEY_IMAGE_URI}, readable by both the client and this app) or the encoded image
+ * itself ({@link #KEY_IMAGE_BYTES}, under the binder transaction limit of about 1 MB). Every
+ * request is answered right away with its admission:
+ * <ul>
+ * <li>{@link #MSG_ACCEPTED}: queued, {@code arg2} is the queue depth.</li>
+ * <li>{@link #MSG_BUSY}: queued, but the queue is filling up. {@code arg2} is how many
+ * milliseconds the client should wait before sending more, never 0.</li>
+ * <li>{@link #MSG_REJECTED}: the queue is full. Retry after {@code arg2} milliseconds.</li>
+ * </ul>
+ * and later with {@link #MSG_RESULT}, whose {@link #KEY_RESULT_URI} is a
+ * {@link FileProvider} URI readable by the packages of the calling uid, or with
+ * {@link #MSG_FAILED}, also sent to the requests still queued when the service stops. {@link #MSG_GET_STATS} returns the queue metrics. A request may
+ * also say how many faces to expect ({@link #KEY_FACE_COUNT_HINT}: single, few or many)
+ * and how long detection may take ({@link #KEY_LATENCY_BUDGET_MILLIS}).
+ *
+ * Requests wait in a {@link BatchingRequestQueue} and a single worker takes them in
+ * batches: the whole batch is decoded, then run through the shared detector back to back,
+ * then composited and encoded. {@link EmojifyServiceClient} wraps the protocol.
+ *
+ * The service reads with the permissions of this app, so it checks that the caller could
+ * read a URI itself before accepting it, and results are only granted to the caller's
+ * packages, which come from its uid rather than from anything the caller sends. Binding
+ * needs the signature permission {@code com.example.android.emojify.permission.EMOJIFY},
+ * so only apps signed with the same key, such as test harnesses, can submit photos.
+ */
+public class EmojifyService extends Service {
+
+    private static final String TAG = EmojifyService.class.getSimpleName();
+
+    // Requests from clients
+    public static final int MSG_EMOJIFY = 1;
+    public static final int MSG_GET_STATS = 2;
+
+    // Replies
+    public static final int MSG_ACCEPTED = 101;
+    public static final int MSG_BUSY = 102;
+    public static final int MSG_REJECTED = 103;
+    public static final int MSG_RESULT = 104;
+    public static final int MSG_FAILED = 105;
+    public static final int MSG_STATS = 106;
+
+    public static final String KEY_IMAGE_URI = "image_uri";
+    public static final String KEY_IMAGE_BYTES = "image_bytes";
+    public static final String KEY_RESULT_URI = "result_uri";
+    public static final String KEY_FACES = "faces";
+    public static final String KEY_ELAPSED_MILLIS = "elapsed_millis";
+    public static final String KEY_ERROR = "error";
+    public static final String KEY_STATS = "stats";
+    public static final String KEY_FACE_COUNT_HINT = DetectorPolicy.Hints.KEY_FACE_COUNT_HINT;
+    public static final String KEY_LATENCY_BUDGET_MILLIS =
+            DetectorPolicy.Hints.KEY_LATENCY_BUDGET_MILLIS;
+
+    static final int QUEUE_CAPACITY = 16;
+    static final int QUEUE_HIGH_WATERMARK = 8;
+
+    // A batch holds at most this many decoded photos, fewer when the heap cannot hold them
+    static final int MAX_BATCH = 3;
+    static final long BATCH_LINGER_MILLIS = 50;
+
+    // Results are kept this long for the client to read them
+    static final long RESULT_TTL_MILLIS = 60 * 60 * 1000;
+
+    private static final String INPUT_DIRECTORY = "service/in";
+    private static final String OUTPUT_DIRECTORY = "service/out";
+
+    /**
+     * A queued photo.
+     */
+    private static class Request {
+
+        final int id;
+        final Uri source;
+        // The copy of an image sent as bytes, deleted once processed
+        final File input;
+        final Messenger replyTo;
+        // The packages of the calling uid, which may read the result
+        final String[] clientPackages;
+        final DetectorPolicy.Hints hints;
+        final long receivedMillis = SystemClock.elapsedRealtime();
+
+        Request(int id, Uri source, File input, Messenger replyTo, String[] clientPackages,
+                DetectorPolicy.Hints hints) {
+            this.id = id;
+            this.source = source;
+            this.input = input;
+            this.replyTo = replyTo;
+            this.clientPackages = clientPackages;
+            this.hints = hints;
+        }
+    }
+
+    private BatchingRequestQueue<Request> mQueue;
+    private HandlerThread mIpcThread;
+    private Thread mWorker;
+    private Messenger mMessenger;
+    private File mInputDirectory;
+    private File mOutputDirectory;
+    private int mMaxBatch;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mInputDirectory = new File(getCacheDir(), INPUT_DIRECTORY);
+        mOutputDirectory = new File(getCacheDir(), OUTPUT_DIRECTORY);
+        BitmapUtils.deleteExpiredFiles(mInputDirectory, 0);
+        BitmapUtils.deleteExpiredFiles(mOutputDirectory, RESULT_TTL_MILLIS);
+        mMaxBatch = Math.min(MAX_BATCH, MemoryBudget.getInstance(this).imagesInFlight(
+                BatchEmojifier.BYTES_PER_IMAGE));
+
+        mQueue = new BatchingRequestQueue<>(QUEUE_CAPACITY, QUEUE_HIGH_WATERMARK,
+                BatchingRequestQueue.SYSTEM_CLOCK);
+
+        // Requests are admitted off the main thread, since images sent as bytes are written out
+        mIpcThread = new HandlerThread(TAG + "-ipc", Process.THREAD_PRIORITY_BACKGROUND);
+        mIpcThread.start();
+        mMessenger = new Messenger(new IncomingHandler(this, mIpcThread.getLooper()));
+
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                work();
+            }
+        }, TAG + "-worker");
+        mWorker.start();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mQueue.close();
+        mWorker.interrupt();
+        mIpcThread.quit();
+        // The worker finishes the batch it holds, nothing would answer the rest
+        for (Request request : mQueue.drain()) {
+            fail(request.replyTo, request.id, "Service stopped");
+            if (request.input != null) {
+                deleteFile(request.input);
+            }
+        }
+        Log.i(TAG, "Stopped: " + mQueue.stats());
+    }
+
+    /**
+     * The uid and pid of the process that sent a message.
+     */
+    private static class Caller {
+
+        final int uid;
+        final int pid;
+
+        Caller(int uid, int pid) {
+            this.uid = uid;
+            this.pid = pid;
+        }
+    }
+
+    /**
+     * Admits the requests of clients, on the IPC thread.
+     */
+    private static class IncomingHandler extends Handler {
+
+        private final EmojifyService mService;
+
+        IncomingHandler(EmojifyService service, Looper looper) {
+            super(looper);
+            mService = service;
+        }
+
+        /**
+         * Tags each message with its sender. The messenger queues a message on the binder
+         * thread of the call, the only place where the caller is known. The pid is 0 for
+         * these one way calls, so the checks rely on the uid.
+         */
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            msg.obj = new Caller(Binder.getCallingUid(), Binder.getCallingPid());
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.replyTo == null || !(msg.obj instanceof Caller)) {
+                Log.w(TAG, "Ignoring message " + msg.what + " without a reply messenger");
+                return;
+            }
+            switch (msg.what) {
+                case MSG_EMOJIFY:
+                    mService.admit(msg.arg1, msg.getData(), msg.replyTo, (Caller) msg.obj);
+                    break;
+                case MSG_GET_STATS:
+                    Bundle data = new Bundle();
+                    data.putString(KEY_STATS, mService.mQueue.stats().toString());
+                    reply(msg.replyTo, MSG_STATS, msg.arg1, mService.mQueue.depth(), data);
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    }
+
+    /**
+     * Queues a request and tells the client how it was admitted.
+     */
+    private void admit(int id, Bundle data, Messenger replyTo, Caller caller) {
+        Uri source = data.getParcelable(KEY_IMAGE_URI);
+        byte[] bytes = data.getByteArray(KEY_IMAGE_BYTES);
+
+        File input = null;
+        if (bytes != null) {
+            try {
+                input = writeInput(bytes);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store request " + id, e);
+                fail(replyTo, id, "Could not store the image");
+                return;
+            }
+            source = Uri.fromFile(input);
+        } else if (!isReadableForClients(source)) {
+            fail(replyTo, id, "Unsupported image URI: " + source);
+            return;
+        } else if (checkUriPermission(source, caller.pid, caller.uid,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION) != PackageManager.PERMISSION_GRANTED) {
+            // Reading it for the caller would hand over data the caller cannot see
+            fail(replyTo, id, "The caller cannot read " + source);
+            return;
+        }
+
+        BatchingRequestQueue.Admission admission = mQueue.offer(
+                new Request(id, source, input, replyTo,
+                        getPackageManager().getPackagesForUid(caller.uid),
+                        DetectorPolicy.Hints.from(data)));
+        switch (admission) {
+            case ACCEPTED:
+                reply(replyTo, MSG_ACCEPTED, id, mQueue.depth(), null);
+                break;
+            case BUSY:
+                reply(replyTo, MSG_BUSY, id, (int) backoffMillis(), null);
+                break;
+            case REJECTED:
+                if (input != null) {
+                    deleteFile(input);
+                }
+                reply(replyTo, MSG_REJECTED, id, (int) backoffMillis(), null);
+                break;
+        }
+    }
+
+    /**
+     * @return How long a client should wait before sending more. Before anything was
+     * processed there is no estimate, a batch linger will do.
+     */
+    private long backoffMillis() {
+        return Math.max(BATCH_LINGER_MILLIS, mQueue.estimatedDrainMillis());
+    }
+
+    /**
+     * Only content URIs of other apps are read for clients. File URIs and this app's own
+     * provider would let a client read files that only this app can see.
+     */
+    private static boolean isReadableForClients(Uri source) {
+        return source != null && ContentResolver.SCHEME_CONTENT.equals(source.getScheme())
+                && !BitmapUtils.FILE_PROVIDER_AUTHORITY.equals(source.getAuthority());
+    }
+
+    private File writeInput(byte[] bytes) throws IOException {
+        if (!mInputDirectory.exists() && !mInputDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mInputDirectory);
+        }
+        File file = File.createTempFile("request", ".img", mInputDirectory);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Takes batches off the queue until the service stops.
+     */
+    private void work() {
+        try {
+            while (true) {
+                List<Request> batch = mQueue.takeBatch(mMaxBatch, BATCH_LINGER_MILLIS);
+                if (batch.isEmpty()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                process(batch);
+                mQueue.onBatchDone(batch.size(), System.nanoTime() - start);
+                Log.d(TAG, "Batch of " + batch.size() + " done: " + mQueue.stats());
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Worker stopped with " + mQueue.depth() + " requests queued");
+        }
+    }
+
+    /**
+     * Runs a batch stage by stage, so the detector handles the batch back to back. A request
+     * that fails at any stage is answered with {@link #MSG_FAILED} and the rest go on.
+     */
+    private void process(List<Request> batch) {
+        int count = batch.size();
+        Bitmap[] pictures = new Bitmap[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                Request request = batch.get(i);
+                try {
+                    pictures[i] = BitmapUtils.resamplePic(this, request.source,
+                            BatchEmojifier.MAX_DIMENSION, BatchEmojifier.MAX_DIMENSION);
+                    if (pictures[i] == null) {
+                        fail(request.replyTo, request.id, "Could not decode " + request.source);
+                    }
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    fail(request, e);
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            List<DetectedFace>[] faces = new List[count];
+            for (int i = 0; i < count; i++) {
+                if (pictures[i] == null) {
+                    continue;
+                }
+                try {
+                    faces[i] = Emojifier.detectFaces(this, pictures[i], batch.get(i).hints);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    fail(batch.get(i), e);
+                    pictures[i].recycle();
+                    pictures[i] = null;
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (pictures[i] != null) {
+                    deliver(batch.get(i), pictures[i], faces[i]);
+                }
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                if (pictures[i] != null) {
+                    pictures[i].recycle();
+                }
+                if (batch.get(i).input != null) {
+                    deleteFile(batch.get(i).input);
+                }
+            }
+        }
+    }
+
+    /**
+     * Composites and encodes one photo, then sends the client a URI it can read.
+     */
+    private void deliver(Request request, Bitmap picture, List<DetectedFace> faces) {
+        try {
+            // The decoded picture is ours, so draw on it without a copy
+            Bitmap result = Emojifier.overlayEmoji(this, picture, faces,
+                    Emojifier.classify(this, faces), true);
+
+            if (!mOutputDirectory.exists() && !mOutputDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mOutputDirectory);
+            }
+            File output = File.createTempFile("emojified",
+                    ImageEncoder.extensionOf(ImageEncoder.DEFAULT_FORMAT), mOutputDirectory);
+            ImageEncoder.encodeNow(result, output, ImageEncoder.DEFAULT_FORMAT,
+                    ImageEncoder.DEFAULT_QUALITY);
+
+            Uri uri = FileProvider.getUriForFile(this, BitmapUtils.FILE_PROVIDER_AUTHORITY,
+                    output);
+            if (request.clientPackages != null) {
+                for (String clientPackage : request.clientPackages) {
+                    grantUriPermission(clientPackage, uri,
+                            Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                }
+            }
+
+            Bundle data = new Bundle();
+            data.putParcelable(KEY_RESULT_URI, uri);
+            data.putLong(KEY_ELAPSED_MILLIS,
+                    SystemClock.elapsedRealtime() - request.receivedMillis);
+            reply(request.replyTo, MSG_RESULT, request.id, faces.size(), data);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            fail(request, e);
+        }
+    }
+
+    /**
+     * Answers a request that threw, as a failed item rather than the end of the worker.
+     */
+    private static void fail(Request request, Throwable e) {
+        Log.e(TAG, "Request " + request.id + " failed", e);
+        if (e instanceof OutOfMemoryError) {
+            // Give the memory of the pooled buffers back to the next requests
+            BitmapPool.clear();
+        }
+        fail(request.replyTo, request.id, e.toString());
+    }
+
+    private static void fail(Messenger replyTo, int id, String error) {
+        Bundle data = new Bundle();
+        data.putString(KEY_ERROR, error);
+        reply(replyTo, MSG_FAILED, id, 0, data);
+    }
+
+    private static void reply(Messenger replyTo, int what, int arg1, int arg2, Bundle data) {
+        Message message = Message.obtain(null, what, arg1, arg2);
+        if (data != null) {
+            message.setData(data);
+        }
+        try {
+            replyTo.send(message);
+        } catch (RemoteException e) {
+            // The client is gone, its result stays until it expires
+            Log.w(TAG, "Could not reply " + what + " to request " + arg1, e);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+}
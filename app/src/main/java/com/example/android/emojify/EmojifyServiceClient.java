@@ -0,0 +1,235 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Client of the {@link EmojifyService} protocol, for test harnesses and as a reference for
+ * other apps. Every callback is on the main thread.
+ *
+ * The client only reports the backpressure of the service, it does not retry: after
+ * {@link BatchingRequestQueue.Admission#BUSY} or {@link BatchingRequestQueue.Admission#REJECTED}
+ * the caller should wait for the given delay before submitting more.
+ */
+class EmojifyServiceClient {
+
+    private static final String TAG = EmojifyServiceClient.class.getSimpleName();
+
+    /**
+     * Receives the replies of the service.
+     */
+    interface Listener {
+
+        /**
+         * Called when a request is admitted or rejected.
+         *
+         * @param requestId     The id returned by {@code submit}.
+         * @param admission     Whether the request was queued.
+         * @param backoffMillis How long to wait before submitting more, 0 if not needed.
+         */
+        void onAdmitted(int requestId, BatchingRequestQueue.Admission admission,
+                long backoffMillis);
+
+        /**
+         * Called with the emojified image.
+         *
+         * @param requestId     The id returned by {@code submit}.
+         * @param result        A content URI the client package can read.
+         * @param faces         The number of faces found.
+         * @param elapsedMillis The time from admission to result, queueing included.
+         */
+        void onResult(int requestId, Uri result, int faces, long elapsedMillis);
+
+        /**
+         * Called if the request could not be processed.
+         */
+        void onFailed(int requestId, String error);
+
+        /**
+         * Called with the queue metrics requested with {@link #requestStats()}.
+         */
+        void onStats(String stats);
+    }
+
+    private final Context mContext;
+    private final Messenger mReplyTo;
+
+    private Messenger mService;
+    private int mNextRequestId = 1;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = new Messenger(binder);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    EmojifyServiceClient(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mReplyTo = new Messenger(new ReplyHandler(listener));
+    }
+
+    /**
+     * Binds to the service, which starts it if needed.
+     *
+     * @return False if the service could not be found.
+     */
+    boolean bind() {
+        Intent intent = new Intent().setComponent(
+                new ComponentName(BuildConfig.APPLICATION_ID, EmojifyService.class.getName()));
+        return mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    void unbind() {
+        mContext.unbindService(mConnection);
+        mService = null;
+    }
+
+    boolean isConnected() {
+        return mService != null;
+    }
+
+    /**
+     * Submits an image by URI. Read access is granted to the service first, which works for
+     * URIs of a provider of this client that allows grants.
+     *
+     * @param image The image to emojify.
+     * @return The request id, or -1 if not connected.
+     */
+    int submit(Uri image) {
+        try {
+            mContext.grantUriPermission(BuildConfig.APPLICATION_ID, image,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // The URI may already be readable by the service
+            Log.d(TAG, "Could not grant access to " + image);
+        }
+        Bundle data = new Bundle();
+        data.putParcelable(EmojifyService.KEY_IMAGE_URI, image);
+        return send(data);
+    }
+
+    /**
+     * Submits an encoded image.
+     *
+     * @param image The JPEG or PNG bytes, under the binder transaction limit.
+     * @return The request id, or -1 if not connected.
+     */
+    int submit(byte[] image) {
+        Bundle data = new Bundle();
+        data.putByteArray(EmojifyService.KEY_IMAGE_BYTES, image);
+        return send(data);
+    }
+
+    /**
+     * Asks for the queue metrics, delivered to {@link Listener#onStats(String)}.
+     *
+     * @return False if not connected.
+     */
+    boolean requestStats() {
+        if (mService == null) {
+            return false;
+        }
+        Message message = Message.obtain(null, EmojifyService.MSG_GET_STATS);
+        message.replyTo = mReplyTo;
+        return send(message);
+    }
+
+    private int send(Bundle data) {
+        if (mService == null) {
+            return -1;
+        }
+        int id = mNextRequestId++;
+        Message message = Message.obtain(null, EmojifyService.MSG_EMOJIFY, id, 0);
+        message.replyTo = mReplyTo;
+        message.setData(data);
+        return send(message) ? id : -1;
+    }
+
+    private boolean send(Message message) {
+        try {
+            mService.send(message);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "The service died", e);
+            mService = null;
+            return false;
+        }
+    }
+
+    /**
+     * Turns the replies back into listener calls.
+     */
+    private static class ReplyHandler extends Handler {
+
+        private final Listener mListener;
+
+        ReplyHandler(Listener listener) {
+            super(Looper.getMainLooper());
+            mListener = listener;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            Bundle data = msg.getData();
+            switch (msg.what) {
+                case EmojifyService.MSG_ACCEPTED:
+                    mListener.onAdmitted(msg.arg1, BatchingRequestQueue.Admission.ACCEPTED, 0);
+                    break;
+                case EmojifyService.MSG_BUSY:
+                    mListener.onAdmitted(msg.arg1, BatchingRequestQueue.Admission.BUSY,
+                            msg.arg2);
+                    break;
+                case EmojifyService.MSG_REJECTED:
+                    mListener.onAdmitted(msg.arg1, BatchingRequestQueue.Admission.REJECTED,
+                            msg.arg2);
+                    break;
+                case EmojifyService.MSG_RESULT:
+                    Uri result = data.getParcelable(EmojifyService.KEY_RESULT_URI);
+                    mListener.onResult(msg.arg1, result, msg.arg2,
+                            data.getLong(EmojifyService.KEY_ELAPSED_MILLIS));
+                    break;
+                case EmojifyService.MSG_FAILED:
+                    mListener.onFailed(msg.arg1, data.getString(EmojifyService.KEY_ERROR));
+                    break;
+                case EmojifyService.MSG_STATS:
+                    mListener.onStats(data.getString(EmojifyService.KEY_STATS));
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+import android.widget.Toast;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Headless fragment that keeps the state of {@link MainActivity} across configuration
+ * changes: the captured photo, the running pipeline job, the finished bitmap and its save,
+ * and the {@link EditSession} once the result is edited.
+ *
+ * The bitmap on screen is only a preview. Once it is shown, the full resolution photo is
+ * rendered in the background by the {@link FullResolutionExporter}, and that export is what
+ * gets saved and shared. The captured photo is kept until the result is cleared, so an
+ * edited result can be exported again.
+ *
+ * The fragment is retained, so a rotation neither restarts a running job nor redoes a
+ * finished one. Pipeline results are forwarded to the attached activity, or held until one
+ * attaches if they arrive while the activity is being recreated.
+ */
+public class EmojifyStateFragment extends Fragment implements EmojifyPipeline.Callback {
+
+    private static final String TAG = EmojifyStateFragment.class.getSimpleName();
+
+    private EmojifyPipeline.Callback mCallback;
+
+    private EmojifyPipeline.Job mPipelineJob;
+    private EmojifyPipeline.Stage mStage;
+    private EmojifyPipeline.Result mPendingResult;
+    private Exception mPendingError;
+
+    private Context mAppContext;
+    private String mTempPhotoPath;
+    private Bitmap mResultsBitmap;
+    private Bitmap mSourceBitmap;
+    private List<DetectedFace> mFaces = Collections.emptyList();
+    private List<Emojifier.Emoji> mEmojis = Collections.emptyList();
+    private EditSession mEditSession;
+
+    // Bumped by every edit, so a save of an earlier version is not mistaken for the current
+    private int mEditCount;
+
+    // The save of mResultsBitmap, so sharing can reuse the encoded file
+    private Future<ImageEncoder.EncodeResult> mPendingSave;
+    private ImageEncoder.EncodeResult mSavedImage;
+    private boolean mShareWhenSaved;
+
+    // The full resolution export of the current version of the result
+    private FullResolutionExporter.Job mExportJob;
+    private FullResolutionExporter.Export mExport;
+    private boolean mExportFailed;
+    private boolean mSaveWhenExported;
+
+    /**
+     * Returns the state fragment of an activity, adding it the first time.
+     *
+     * @param fragmentManager The fragment manager of the activity.
+     */
+    static EmojifyStateFragment getInstance(FragmentManager fragmentManager) {
+        EmojifyStateFragment fragment =
+                (EmojifyStateFragment) fragmentManager.findFragmentByTag(TAG);
+        if (fragment == null) {
+            fragment = new EmojifyStateFragment();
+            fragmentManager.beginTransaction().add(fragment, TAG).commitNow();
+        }
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Only called once the activity is finishing for good
+        cancelProcessing();
+        discardExport();
+        if (mAppContext != null) {
+            deleteTempPhoto(mAppContext);
+        }
+    }
+
+    /**
+     * Starts forwarding the pipeline progress to a callback. Progress and results that came
+     * in while no callback was attached are delivered right away.
+     *
+     * @param callback The callback, usually the recreated activity.
+     */
+    void attach(EmojifyPipeline.Callback callback) {
+        mCallback = callback;
+        if (mPipelineJob != null && mStage != null) {
+            callback.onStageChanged(mStage);
+        }
+        if (mPendingResult != null) {
+            EmojifyPipeline.Result result = mPendingResult;
+            mPendingResult = null;
+            callback.onComplete(result);
+        }
+        if (mPendingError != null) {
+            Exception error = mPendingError;
+            mPendingError = null;
+            callback.onError(error);
+        }
+        if (mShareWhenSaved && mSavedImage != null && getActivity() != null) {
+            mShareWhenSaved = false;
+            BitmapUtils.shareImage(getActivity(), mSavedImage.path);
+        }
+    }
+
+    /**
+     * Stops forwarding the pipeline progress, the job itself keeps running.
+     */
+    void detach() {
+        mCallback = null;
+    }
+
+    /**
+     * Emojifies the captured photo in the background, replacing any previous result.
+     *
+     * @param context The context.
+     */
+    void startProcessing(Context context) {
+        mAppContext = context.getApplicationContext();
+        cancelProcessing();
+        setResultsBitmap(null);
+        mPipelineJob = EmojifyPipeline.start(context, mTempPhotoPath, this);
+    }
+
+    /**
+     * Cancels the photo that is being processed, if any.
+     */
+    void cancelProcessing() {
+        if (mPipelineJob != null) {
+            mPipelineJob.cancel();
+            mPipelineJob = null;
+        }
+        mStage = null;
+        mPendingResult = null;
+        mPendingError = null;
+    }
+
+    /**
+     * @return True while the captured photo is being processed.
+     */
+    boolean isProcessing() {
+        return mPipelineJob != null;
+    }
+
+    @Override
+    public void onStageChanged(EmojifyPipeline.Stage stage) {
+        mStage = stage;
+        if (mCallback != null) {
+            mCallback.onStageChanged(stage);
+        }
+    }
+
+    @Override
+    public void onComplete(EmojifyPipeline.Result result) {
+        mPipelineJob = null;
+        mStage = null;
+        setResultsBitmap(result.bitmap);
+        mSourceBitmap = result.source;
+        mFaces = result.faces;
+        mEmojis = result.emojis;
+        startExport();
+        if (mCallback != null) {
+            mCallback.onComplete(result);
+        } else {
+            mPendingResult = result;
+        }
+    }
+
+    @Override
+    public void onError(Exception e) {
+        mPipelineJob = null;
+        mStage = null;
+        if (mCallback != null) {
+            mCallback.onError(e);
+        } else {
+            mPendingError = e;
+        }
+    }
+
+    String getTempPhotoPath() {
+        return mTempPhotoPath;
+    }
+
+    void setTempPhotoPath(String tempPhotoPath) {
+        mTempPhotoPath = tempPhotoPath;
+    }
+
+    /**
+     * Deletes the captured photo, if it has not been deleted yet.
+     *
+     * @param context The context.
+     */
+    void deleteTempPhoto(Context context) {
+        if (mTempPhotoPath != null) {
+            BitmapUtils.deleteImageFile(context, mTempPhotoPath);
+            mTempPhotoPath = null;
+        }
+    }
+
+    Bitmap getResultsBitmap() {
+        return mResultsBitmap;
+    }
+
+    /**
+     * Replaces the result and forgets the save and edits of the previous one.
+     */
+    void setResultsBitmap(Bitmap bitmap) {
+        // The clean source is never shown or saved, so it can go right away
+        if (mSourceBitmap != null && mSourceBitmap != mResultsBitmap
+                && mSourceBitmap != bitmap) {
+            mSourceBitmap.recycle();
+        }
+        mResultsBitmap = bitmap;
+        mSourceBitmap = null;
+        mFaces = Collections.emptyList();
+        mEmojis = Collections.emptyList();
+        mEditSession = null;
+        onResultEdited();
+    }
+
+    /**
+     * Returns the edit session of the result, starting it the first time.
+     *
+     * @param context The context.
+     * @return The session, or null if the result has no faces to edit.
+     */
+    EditSession getEditSession(Context context) {
+        if (mEditSession == null && mSourceBitmap != null && !mFaces.isEmpty()) {
+            mEditSession = new EditSession(context.getApplicationContext(), mSourceBitmap,
+                    mResultsBitmap, mFaces);
+            mResultsBitmap = mEditSession.getResult();
+        }
+        return mEditSession;
+    }
+
+    /**
+     * Forgets the save and export of the result after it was edited, the next save exports
+     * and encodes it again.
+     */
+    void onResultEdited() {
+        mEditCount++;
+        mPendingSave = null;
+        mSavedImage = null;
+        mShareWhenSaved = false;
+        discardExport();
+    }
+
+    /**
+     * Starts rendering the current version of the result at full resolution.
+     */
+    private void startExport() {
+        discardExport();
+        Bitmap preview = mSourceBitmap != null ? mSourceBitmap : mResultsBitmap;
+        if (preview == null || mTempPhotoPath == null || mAppContext == null) {
+            mExportFailed = true;
+            return;
+        }
+
+        // An edited result is exported with the emojis and size picked in the session
+        List<Emojifier.Emoji> emojis = mEmojis;
+        float scale = Emojifier.EMOJI_SCALE_FACTOR;
+        if (mEditSession != null) {
+            emojis = mEditSession.getEmojis();
+            scale = mEditSession.getScale();
+        }
+
+        mExportJob = FullResolutionExporter.start(mAppContext, mTempPhotoPath,
+                preview.getWidth(), preview.getHeight(), mFaces, emojis, scale,
+                new FullResolutionExporter.Listener() {
+                    @Override
+                    public void onExported(FullResolutionExporter.Export export) {
+                        mExportJob = null;
+                        mExport = export;
+                        if (mSaveWhenExported) {
+                            mSaveWhenExported = false;
+                            startSave(mAppContext);
+                        }
+                    }
+
+                    @Override
+                    public void onExportFailed(Exception e) {
+                        mExportJob = null;
+                        mExportFailed = true;
+                        if (mSaveWhenExported) {
+                            mSaveWhenExported = false;
+                            startSave(mAppContext);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Cancels the running export and deletes the finished one, if any.
+     */
+    private void discardExport() {
+        if (mExportJob != null) {
+            mExportJob.cancel();
+            mExportJob = null;
+        }
+        if (mExport != null) {
+            mExport.delete();
+            mExport = null;
+        }
+        mExportFailed = false;
+        mSaveWhenExported = false;
+    }
+
+    /**
+     * Saves the result to the gallery, once per result.
+     *
+     * @param context The context.
+     */
+    void save(Context context) {
+        if (mSaveWhenExported) {
+            Toast.makeText(context, R.string.exporting, Toast.LENGTH_SHORT).show();
+        } else if (mPendingSave == null) {
+            startSave(context);
+        } else if (mSavedImage != null) {
+            String savedMessage = context.getString(R.string.saved_message, mSavedImage.path);
+            Toast.makeText(context, savedMessage, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Shares the saved result, saving it first if needed. The saved file is shared directly,
+     * so sharing after saving does not encode the image again.
+     *
+     * @param activity The activity to share from.
+     */
+    void share(FragmentActivity activity) {
+        if (mSavedImage != null) {
+            BitmapUtils.shareImage(activity, mSavedImage.path);
+            return;
+        }
+        mShareWhenSaved = true;
+        if (mPendingSave == null && !mSaveWhenExported) {
+            startSave(activity);
+        }
+    }
+
+    /**
+     * Saves the current result and shares it afterwards if a share was requested meanwhile.
+     * The full resolution export is saved when there is one, the preview is only saved if
+     * the export failed. The preview is encoded from a copy taken now, since the edit session
+     * keeps drawing into the result while the encoder reads it.
+     */
+    private void startSave(Context context) {
+        if (mExport == null && !mExportFailed) {
+            // Wait for the export, starting it again if an edit discarded it
+            mSaveWhenExported = true;
+            if (mExportJob == null) {
+                startExport();
+            }
+            Toast.makeText(context, R.string.exporting, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final Bitmap image = mResultsBitmap;
+        final int editCount = mEditCount;
+        final Bitmap snapshot = mExport == null
+                ? image.copy(Bitmap.Config.ARGB_8888, false) : null;
+        if (mExport == null && snapshot == null) {
+            Toast.makeText(context, R.string.not_saved, Toast.LENGTH_SHORT).show();
+            mShareWhenSaved = false;
+            return;
+        }
+        ImageEncoder.Listener listener = new ImageEncoder.Listener() {
+            @Override
+            public void onEncoded(ImageEncoder.EncodeResult result) {
+                if (snapshot != null) {
+                    snapshot.recycle();
+                }
+                // Ignore saves of a result that has since been replaced or edited
+                if (image != mResultsBitmap || editCount != mEditCount) {
+                    return;
+                }
+                mSavedImage = result;
+
+                // Without an activity the share waits for the next one to attach
+                if (mShareWhenSaved && getActivity() != null) {
+                    mShareWhenSaved = false;
+                    BitmapUtils.shareImage(getActivity(), result.path);
+                }
+            }
+
+            @Override
+            public void onEncodeFailed(Exception e) {
+                if (snapshot != null) {
+                    snapshot.recycle();
+                }
+                if (image != mResultsBitmap || editCount != mEditCount) {
+                    return;
+                }
+                // Allow another attempt
+                mPendingSave = null;
+                mShareWhenSaved = false;
+            }
+        };
+        if (mExport != null) {
+            mPendingSave = BitmapUtils.saveImage(context, mExport.file, mExport.format,
+                    listener);
+        } else {
+            mPendingSave = BitmapUtils.saveImage(context, snapshot, listener);
+        }
+    }
+}
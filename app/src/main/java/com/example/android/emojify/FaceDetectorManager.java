@@ -0,0 +1,260 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the app's face detectors.
+ *
+ * Detectors are built once per {@link DetectorConfig} and leased to every caller, so the
+ * native model is only loaded once. They are only released on low memory or shutdown, and a
+ * detector that is still leased is released when its last lease is returned, so detect() never
+ * runs on a released detector. Detectors are not thread safe, callers must synchronize on the
+ * detector around detect():
+ *
+ * <pre>
+ * FaceDetectorManager.Lease lease = manager.acquire(config);
+ * try {
+ *     synchronized (lease.detector) {
+ *         lease.detector.detect(frame);
+ *     }
+ * } finally {
+ *     manager.release(lease);
+ * }
+ * </pre>
+ */
+class FaceDetectorManager {
+
+    private static final String TAG = FaceDetectorManager.class.getSimpleName();
+
+    // Size of the blank frame used to load the native model during warm up
+    private static final int WARM_UP_FRAME_SIZE = 64;
+
+    /**
+     * Readiness of the face detection dependencies.
+     */
+    enum State {
+        // No detector has been built yet
+        UNINITIALIZED,
+        // The default detector is being built on a background thread
+        WARMING_UP,
+        // Detection works
+        READY,
+        // The native library has not been downloaded yet
+        NOT_OPERATIONAL,
+        // The native library cannot be downloaded due to low device storage
+        LOW_STORAGE
+    }
+
+    private static FaceDetectorManager sInstance;
+
+    private final Context mContext;
+    private final Map<DetectorConfig, Lease> mDetectors = new HashMap<>();
+    private final ExecutorService mWarmUpExecutor = Executors.newSingleThreadExecutor();
+
+    private volatile State mState = State.UNINITIALIZED;
+    private boolean mLowStorageChecked;
+
+    private FaceDetectorManager(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the process-wide detector manager.
+     *
+     * @param context The application context.
+     */
+    static synchronized FaceDetectorManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FaceDetectorManager(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Builds the still image detector and runs it once on a background thread, so the first
+     * photo does not pay for loading the native model.
+     */
+    void warmUp() {
+        synchronized (this) {
+            if (mState != State.UNINITIALIZED) {
+                return;
+            }
+            mState = State.WARMING_UP;
+        }
+        mWarmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Lease lease = acquire(DetectorConfig.STILL_IMAGE);
+                try {
+                    if (mState != State.READY) {
+                        return;
+                    }
+                    Bitmap blank = Bitmap.createBitmap(WARM_UP_FRAME_SIZE, WARM_UP_FRAME_SIZE,
+                            Bitmap.Config.RGB_565);
+                    synchronized (lease.detector) {
+                        lease.detector.detect(new Frame.Builder().setBitmap(blank).build());
+                    }
+                    blank.recycle();
+                    Log.d(TAG, "Face detector warmed up");
+                } finally {
+                    release(lease);
+                }
+            }
+        });
+    }
+
+    /**
+     * Leases the shared detector for a configuration, building it on first use.
+     *
+     * @param config The detector settings.
+     * @return The lease, to hand back to {@link #release(Lease)} once detection is done.
+     */
+    synchronized Lease acquire(DetectorConfig config) {
+        Lease lease = mDetectors.get(config);
+        if (lease == null) {
+            lease = new Lease(config, config.build(mContext));
+            mDetectors.put(config, lease);
+            Log.d(TAG, "Built face detector " + config);
+        }
+        if (mState != State.READY) {
+            updateState(lease.detector);
+        }
+        lease.mUsers++;
+        return lease;
+    }
+
+    /**
+     * Returns a lease. If its detector was released while it was leased, the last lease to be
+     * returned releases it.
+     *
+     * @param lease A lease from {@link #acquire(DetectorConfig)}.
+     */
+    synchronized void release(Lease lease) {
+        lease.mUsers--;
+        if (lease.mRetired && lease.mUsers == 0) {
+            destroy(lease);
+        }
+    }
+
+    /**
+     * @return The current readiness of face detection.
+     */
+    State getState() {
+        return mState;
+    }
+
+    /**
+     * @return True if detectors can find faces.
+     */
+    boolean isReady() {
+        return mState == State.READY;
+    }
+
+    /**
+     * Releases every detector. They are rebuilt on the next {@link #acquire(DetectorConfig)}.
+     */
+    synchronized void releaseAll() {
+        for (Lease lease : mDetectors.values()) {
+            retire(lease);
+        }
+        mDetectors.clear();
+        if (mState == State.READY) {
+            mState = State.UNINITIALIZED;
+        }
+        Log.d(TAG, "Released all face detectors");
+    }
+
+    /**
+     * Stops handing out a detector, and releases it now if nobody is using it.
+     */
+    private void retire(Lease lease) {
+        lease.mRetired = true;
+        if (lease.mUsers == 0) {
+            destroy(lease);
+        } else {
+            Log.d(TAG, "Face detector " + lease.config + " is released after "
+                    + lease.mUsers + " more detections");
+        }
+    }
+
+    private void destroy(Lease lease) {
+        synchronized (lease.detector) {
+            lease.detector.release();
+        }
+        Log.d(TAG, "Released face detector " + lease.config);
+    }
+
+    /**
+     * Checks whether the native library is available. The low storage check only runs the
+     * first time the detector is found not to be operational.
+     */
+    private void updateState(FaceDetector detector) {
+        if (detector.isOperational()) {
+            mState = State.READY;
+            return;
+        }
+
+        Log.d(TAG, "The required native library to do face detection is not available");
+
+        // Check for low storage.  If there is low storage, the native library will not be
+        // downloaded, so detection will not become operational.
+        if (!mLowStorageChecked) {
+            mLowStorageChecked = true;
+            IntentFilter lowstorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
+            if (mContext.registerReceiver(null, lowstorageFilter) != null) {
+                mState = State.LOW_STORAGE;
+                Log.d(TAG, mContext.getString(R.string.low_storage_error));
+                return;
+            }
+        }
+        if (mState != State.LOW_STORAGE) {
+            mState = State.NOT_OPERATIONAL;
+        }
+    }
+
+    /**
+     * A shared detector and the number of callers using it. Only the manager changes the
+     * counts, under its own lock.
+     */
+    static final class Lease {
+
+        final DetectorConfig config;
+        final FaceDetector detector;
+
+        private int mUsers;
+        private boolean mRetired;
+
+        private Lease(DetectorConfig config, FaceDetector detector) {
+            this.config = config;
+            this.detector = detector;
+        }
+    }
+}
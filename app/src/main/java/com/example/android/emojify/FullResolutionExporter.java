@@ -0,0 +1,274 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders the full resolution version of an emojified photo in the background, after the
+ * preview has been shown.
+ *
+ * The faces found on the preview are scaled up to the original, so nothing is detected
+ * again. When the full frame fits in the heap it is composited in one pass and encoded as
+ * a JPEG. Otherwise the {@link LargeImageEmojifier} renders it band by band into a PNG.
+ * Either way the export ends up in a file that save and share can use directly.
+ */
+class FullResolutionExporter {
+
+    private static final String TAG = FullResolutionExporter.class.getSimpleName();
+
+    static final String EXPORT_DIRECTORY = "exports";
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the outcome of an export on the main thread.
+     */
+    interface Listener {
+
+        /**
+         * Called with the exported image.
+         */
+        void onExported(Export export);
+
+        /**
+         * Called if the export fails.
+         */
+        void onExportFailed(Exception e);
+    }
+
+    /**
+     * A finished export.
+     */
+    static class Export {
+
+        final File file;
+        final Bitmap.CompressFormat format;
+        final int width;
+        final int height;
+
+        Export(File file, Bitmap.CompressFormat format, int width, int height) {
+            this.file = file;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Deletes the exported file.
+         */
+        void delete() {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Handle to a running export.
+     */
+    static class Job implements Runnable {
+
+        private final Context mContext;
+        private final String mImagePath;
+        private final int mPreviewWidth;
+        private final int mPreviewHeight;
+        private final List<DetectedFace> mFaces;
+        private final List<Emojifier.Emoji> mEmojis;
+        private final float mScale;
+        private final Listener mListener;
+
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        private Job(Context context, String imagePath, int previewWidth, int previewHeight,
+                List<DetectedFace> faces, List<Emojifier.Emoji> emojis, float scale,
+                Listener listener) {
+            mContext = context.getApplicationContext();
+            mImagePath = imagePath;
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mFaces = new ArrayList<>(faces);
+            mEmojis = new ArrayList<>(emojis);
+            mScale = scale;
+            mListener = listener;
+        }
+
+        /**
+         * Stops the export, the listener is not called. Must be called on the main thread.
+         */
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            Export export = null;
+            try {
+                export = export();
+                final Export result = export;
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            result.delete();
+                        } else {
+                            mListener.onExported(result);
+                        }
+                    }
+                });
+            } catch (CancellationException e) {
+                Log.d(TAG, "Export cancelled for " + mImagePath);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Export failed for " + mImagePath, e);
+                if (export != null) {
+                    export.delete();
+                }
+                fail(e);
+            } catch (OutOfMemoryError e) {
+                // The listener falls back to the preview, give it the pooled memory back
+                Log.e(TAG, "Out of memory exporting " + mImagePath, e);
+                BitmapPool.clear();
+                fail(new IllegalStateException("Out of memory exporting " + mImagePath, e));
+            }
+        }
+
+        /**
+         * Reports a failed export, unless it was cancelled.
+         */
+        private void fail(final Exception e) {
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onExportFailed(e);
+                    }
+                }
+            });
+        }
+
+        private Export export() throws IOException {
+            Uri source = Uri.fromFile(new File(mImagePath));
+            int[] size = BitmapUtils.decodeBounds(mContext, source);
+            int width = size[0];
+            int height = size[1];
+
+            // Map the preview faces onto the original
+            float scaleX = (float) width / mPreviewWidth;
+            float scaleY = (float) height / mPreviewHeight;
+            List<DetectedFace> faces = new ArrayList<>(mFaces.size());
+            for (DetectedFace face : mFaces) {
+                faces.add(face.scale(scaleX, scaleY));
+            }
+            checkCancelled();
+
+            File directory = new File(mContext.getCacheDir(), EXPORT_DIRECTORY);
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+
+            if (MemoryBudget.getInstance(mContext).canHoldBitmap(width, height)) {
+                Bitmap picture = BitmapUtils.resamplePic(mImagePath, width, height);
+                if (picture == null) {
+                    throw new IOException("Could not decode " + mImagePath);
+                }
+                try {
+                    checkCancelled();
+                    Bitmap result = Emojifier.overlayEmoji(mContext, picture, faces, mEmojis,
+                            mScale, true);
+                    checkCancelled();
+                    File file = File.createTempFile("export", ImageEncoder.extensionOf(
+                            ImageEncoder.DEFAULT_FORMAT), directory);
+                    ImageEncoder.encodeNow(result, file, ImageEncoder.DEFAULT_FORMAT,
+                            ImageEncoder.DEFAULT_QUALITY);
+                    return new Export(file, ImageEncoder.DEFAULT_FORMAT, width, height);
+                } finally {
+                    picture.recycle();
+                }
+            }
+
+            // Too large for the heap, only one band is decoded at a time
+            Log.d(TAG, width + "x" + height + " does not fit the heap, exporting in bands");
+            File file = File.createTempFile("export",
+                    ImageEncoder.extensionOf(Bitmap.CompressFormat.PNG), directory);
+            LargeImageEmojifier.emojify(mContext, source, faces, mEmojis, mScale, file);
+            return new Export(file, Bitmap.CompressFormat.PNG, width, height);
+        }
+
+        private void checkCancelled() {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    /**
+     * Starts rendering the full resolution photo. Must be called on the main thread.
+     *
+     * @param context       The application context.
+     * @param imagePath     The path of the original photo, which must stay until the export
+     *                      is done.
+     * @param previewWidth  The width of the preview the faces were found in.
+     * @param previewHeight The height of the preview the faces were found in.
+     * @param faces         The faces, in preview coordinates.
+     * @param emojis        The emoji of each face.
+     * @param scale         How much wider than its face each emoji is.
+     * @param listener      Receives the export on the main thread.
+     * @return The job, which can be cancelled.
+     */
+    static Job start(Context context, String imagePath, int previewWidth, int previewHeight,
+            List<DetectedFace> faces, List<Emojifier.Emoji> emojis, float scale,
+            Listener listener) {
+        Job job = new Job(context, imagePath, previewWidth, previewHeight, faces, emojis,
+                scale, listener);
+        job.mFuture = EXECUTOR.submit(job);
+        return job;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compresses bitmaps to files on background threads through a buffered stream.
+ *
+ * Two encoder threads let a save and a share encode at the same time. Results come back
+ * as a {@link Future} and, optionally, through a {@link Listener} on the main thread.
+ */
+class ImageEncoder {
+
+    private static final String TAG = ImageEncoder.class.getSimpleName();
+
+    // The format and quality used for saved and shared images
+    static final Bitmap.CompressFormat DEFAULT_FORMAT = Bitmap.CompressFormat.JPEG;
+    static final int DEFAULT_QUALITY = 90;
+
+    private static final int ENCODER_THREADS = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(ENCODER_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ImageEncoder");
+                }
+            });
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the outcome of an encode on the main thread.
+     */
+    interface Listener {
+
+        void onEncoded(EncodeResult result);
+
+        void onEncodeFailed(Exception e);
+    }
+
+    /**
+     * A finished encode.
+     */
+    static class EncodeResult {
+
+        final String path;
+        final long byteCount;
+        final long encodeTimeMillis;
+        final Bitmap.CompressFormat format;
+
+        EncodeResult(String path, long byteCount, long encodeTimeMillis,
+                Bitmap.CompressFormat format) {
+            this.path = path;
+            this.byteCount = byteCount;
+            this.encodeTimeMillis = encodeTimeMillis;
+            this.format = format;
+        }
+
+        @Override
+        public String toString() {
+            return "EncodeResult[" + path + ", " + format + ", " + byteCount + " bytes, "
+                    + encodeTimeMillis + " ms]";
+        }
+    }
+
+    /**
+     * Returns the file extension for a format, including the dot.
+     */
+    static String extensionOf(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return ".png";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".jpg";
+        }
+    }
+
+    /**
+     * Compresses a bitmap into a file on an encoder thread. The bitmap must not be modified
+     * or recycled until the encode is done.
+     *
+     * @param image    The bitmap to encode.
+     * @param file     The file to write, replaced if it exists.
+     * @param format   The compression format.
+     * @param quality  The compression quality, 0-100. Ignored by PNG.
+     * @param listener Notified on the main thread when done, may be null.
+     * @return The future result. It fails with an {@link IOException} if the file could not
+     *         be written.
+     */
+    static Future<EncodeResult> encode(final Bitmap image, final File file,
+            final Bitmap.CompressFormat format, final int quality, final Listener listener) {
+        return EXECUTOR.submit(new Callable<EncodeResult>() {
+            @Override
+            public EncodeResult call() throws IOException {
+                try {
+                    final EncodeResult result = encodeNow(image, file, format, quality);
+                    if (listener != null) {
+                        MAIN_HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncoded(result);
+                            }
+                        });
+                    }
+                    return result;
+                } catch (final IOException e) {
+                    Log.e(TAG, "Could not encode " + file, e);
+                    if (listener != null) {
+                        MAIN_HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncodeFailed(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies an image that is already encoded into another file on an encoder thread, so
+     * the same listener can be used as for a fresh encode.
+     *
+     * @param source   The encoded image.
+     * @param file     The file to write, replaced if it exists.
+     * @param format   The format the source is encoded in.
+     * @param listener Notified on the main thread when done, may be null.
+     * @return The future result.
+     */
+    static Future<EncodeResult> copy(final File source, final File file,
+            final Bitmap.CompressFormat format, final Listener listener) {
+        return EXECUTOR.submit(new Callable<EncodeResult>() {
+            @Override
+            public EncodeResult call() throws IOException {
+                try {
+                    final EncodeResult result = copyNow(source, file, format);
+                    if (listener != null) {
+                        MAIN_HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncoded(result);
+                            }
+                        });
+                    }
+                    return result;
+                } catch (final IOException e) {
+                    Log.e(TAG, "Could not copy " + source + " to " + file, e);
+                    if (listener != null) {
+                        MAIN_HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncodeFailed(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private static EncodeResult copyNow(File source, File file, Bitmap.CompressFormat format)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        boolean written = false;
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            in.close();
+            if (!written) {
+                deletePartial(file);
+            }
+        }
+        EncodeResult result = new EncodeResult(file.getAbsolutePath(), file.length(),
+                SystemClock.elapsedRealtime() - start, format);
+        Log.d(TAG, "Copied " + result);
+        return result;
+    }
+
+    /**
+     * Compresses a bitmap into a file on the calling thread.
+     *
+     * @see #encode(Bitmap, File, Bitmap.CompressFormat, int, Listener)
+     */
+    static EncodeResult encodeNow(Bitmap image, File file, Bitmap.CompressFormat format,
+            int quality) throws IOException {
+        long metricsStart = EmojifyMetrics.begin();
+        long start = SystemClock.elapsedRealtime();
+
+        boolean written = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            try {
+                if (!image.compress(format, quality, out)) {
+                    throw new IOException("Could not compress the image as " + format);
+                }
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                deletePartial(file);
+            }
+        }
+
+        EncodeResult result = new EncodeResult(file.getAbsolutePath(), file.length(),
+                SystemClock.elapsedRealtime() - start, format);
+        EmojifyMetrics.end(EmojifyMetrics.Stage.ENCODE, metricsStart, result.byteCount);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Deletes what was written of a file that could not be finished, so no truncated image is
+     * left in the gallery.
+     */
+    private static void deletePartial(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete the partial file " + file);
+        }
+    }
+}
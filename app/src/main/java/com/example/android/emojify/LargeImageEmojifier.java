@@ -0,0 +1,287 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.emojify.raster.StreamingPngWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Emojifies images too large to decode whole, at their full resolution.
+ *
+ * Faces are detected on a small preview and mapped up to the full image. The output is then
+ * decoded, composited and encoded one full-width band at a time with a
+ * {@link BitmapRegionDecoder} and a {@link StreamingPngWriter}, and only the rows that
+ * an emoji covers are blended, with {@link EmojiCompositor#blendRows}. Peak memory depends on the band size and the
+ * emoji atlas, not on the size of the image.
+ */
+class LargeImageEmojifier {
+
+    private static final String TAG = LargeImageEmojifier.class.getSimpleName();
+
+    // Faces are detected on a preview no larger than this
+    static final int PREVIEW_MAX_DIMENSION = 1024;
+
+    // Each band holds at most this many bytes of ARGB_8888 pixels
+    static final int BAND_BYTES = 4 * 1024 * 1024;
+
+    private static final int PNG_COMPRESSION_LEVEL = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The outcome of one image.
+     */
+    static class Report {
+
+        final int width;
+        final int height;
+        final int faces;
+        final int bands;
+        final int compositedBands;
+
+        Report(int width, int height, int faces, int bands, int compositedBands) {
+            this.width = width;
+            this.height = height;
+            this.faces = faces;
+            this.bands = bands;
+            this.compositedBands = compositedBands;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d, %d faces, %d of %d bands composited",
+                    width, height, faces, compositedBands, bands);
+        }
+    }
+
+    /**
+     * Returns how many rows fit in a band of {@link #BAND_BYTES}.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    static int bandHeight(int width, int height) {
+        return Math.max(1, Math.min(height, BAND_BYTES / (width * 4)));
+    }
+
+    /**
+     * Emojifies an image at full resolution and writes it as a PNG.
+     *
+     * @param context The application context.
+     * @param source  The file or content URI of the image.
+     * @param output  The PNG file to write.
+     * @return The report of the image.
+     * @throws IOException If the image cannot be read or the output cannot be written.
+     */
+    static Report emojify(Context context, Uri source, File output) throws IOException {
+        return emojify(context, source, output, DetectorPolicy.Hints.DEFAULT);
+    }
+
+    /**
+     * Emojifies an image at full resolution and writes it as a PNG.
+     *
+     * @param context The application context.
+     * @param source  The file or content URI of the image.
+     * @param output  The PNG file to write.
+     * @param hints   What the caller knows about the faces in the image.
+     * @return The report of the image.
+     * @throws IOException If the image cannot be read or the output cannot be written.
+     */
+    static Report emojify(Context context, Uri source, File output, DetectorPolicy.Hints hints)
+            throws IOException {
+        int[] size = BitmapUtils.decodeBounds(context, source);
+        List<DetectedFace> faces = detectFaces(context, source, size[0], size[1], hints);
+        return emojify(context, source, faces, Emojifier.classify(context, faces),
+                Emojifier.EMOJI_SCALE_FACTOR, output);
+    }
+
+    /**
+     * Emojifies an image at full resolution with faces that are already known, and writes
+     * it as a PNG.
+     *
+     * @param context The application context.
+     * @param source  The file or content URI of the image.
+     * @param faces   The faces, in the coordinates of the full image.
+     * @param emojis  The emoji of each face.
+     * @param scale   How much wider than its face each emoji is.
+     * @param output  The PNG file to write.
+     * @return The report of the image.
+     * @throws IOException If the image cannot be read or the output cannot be written.
+     */
+    static Report emojify(Context context, Uri source, List<DetectedFace> faces,
+            List<Emojifier.Emoji> emojis, float scale, File output) throws IOException {
+        BitmapRegionDecoder decoder = openDecoder(context, source);
+        try {
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+
+            // Scale every emoji once, each band blends the ones that reach into it
+            long start = EmojifyMetrics.begin();
+            EmojiAtlas atlas = EmojiAtlas.getInstance(context);
+            EmojifyMetrics.end(EmojifyMetrics.Stage.SPRITE_LOAD, start);
+            EmojiAtlas.Sprite[] sprites = new EmojiAtlas.Sprite[faces.size()];
+            for (int i = 0; i < sprites.length; i++) {
+                DetectedFace face = faces.get(i);
+                sprites[i] = atlas.place(emojis.get(i), face.left, face.top, face.width,
+                        face.height, scale);
+            }
+
+            int bandHeight = bandHeight(width, height);
+            int bands = 0;
+            int compositedBands = 0;
+            int[] row = new int[width];
+            int[] buffer = EmojiCompositor.newBuffer(width);
+
+            // A failed image leaves no truncated PNG behind
+            boolean written = false;
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(output),
+                        BUFFER_SIZE);
+                StreamingPngWriter writer = null;
+                Bitmap band = null;
+                try {
+                    writer = new StreamingPngWriter(out, width, height, PNG_COMPRESSION_LEVEL);
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    options.inMutable = true;
+                    Rect region = new Rect();
+
+                    for (int bandTop = 0; bandTop < height; bandTop += bandHeight) {
+                        int bandBottom = Math.min(height, bandTop + bandHeight);
+                        region.set(0, bandTop, width, bandBottom);
+
+                        start = EmojifyMetrics.begin();
+                        // The region decoder draws into a reused band from Jelly Bean on
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                                && band != null && band.isMutable()) {
+                            options.inBitmap = band;
+                        } else {
+                            if (band != null) {
+                                band.recycle();
+                            }
+                            options.inBitmap = null;
+                        }
+                        band = decoder.decodeRegion(region, options);
+                        if (band == null) {
+                            throw new IOException("Could not decode rows " + bandTop + " to "
+                                    + bandBottom + " of " + source);
+                        }
+                        if (!band.isMutable()) {
+                            // Older region decoders ignore inMutable, the rows are blended in
+                            Bitmap mutable = band.copy(Bitmap.Config.ARGB_8888, true);
+                            band.recycle();
+                            band = mutable;
+                        }
+                        EmojifyMetrics.end(EmojifyMetrics.Stage.DECODE, start);
+
+                        // Bands without an emoji go straight to the encoder
+                        start = EmojifyMetrics.begin();
+                        if (EmojiCompositor.blendRows(band, bandTop, sprites, 0,
+                                bandBottom - bandTop, buffer)) {
+                            EmojifyMetrics.end(EmojifyMetrics.Stage.COMPOSITE, start);
+                            compositedBands++;
+                        }
+
+                        start = EmojifyMetrics.begin();
+                        for (int y = 0; y < bandBottom - bandTop; y++) {
+                            band.getPixels(row, 0, width, 0, y, width, 1);
+                            writer.writeRow(row, 0);
+                        }
+                        EmojifyMetrics.end(EmojifyMetrics.Stage.ENCODE, start);
+                        bands++;
+                    }
+                    writer.finish();
+                } finally {
+                    if (writer != null) {
+                        writer.abort();
+                    }
+                    if (band != null) {
+                        band.recycle();
+                    }
+                    out.close();
+                }
+                written = true;
+            } finally {
+                if (!written && output.exists() && !output.delete()) {
+                    Log.w(TAG, "Could not delete the partial " + output);
+                }
+            }
+
+            Report report = new Report(width, height, faces.size(), bands, compositedBands);
+            Log.d(TAG, "Emojified " + source + ": " + report);
+            return report;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Detects the faces on a preview and maps them to the full image.
+     */
+    private static List<DetectedFace> detectFaces(Context context, Uri source, int width,
+            int height, DetectorPolicy.Hints hints) throws IOException {
+        Bitmap preview = BitmapUtils.resamplePic(context, source, PREVIEW_MAX_DIMENSION,
+                PREVIEW_MAX_DIMENSION);
+        if (preview == null) {
+            throw new IOException("Could not decode a preview of " + source);
+        }
+        List<DetectedFace> previewFaces;
+        float scaleX = (float) width / preview.getWidth();
+        float scaleY = (float) height / preview.getHeight();
+        try {
+            previewFaces = Emojifier.detectFaces(context, preview, hints);
+        } finally {
+            preview.recycle();
+        }
+
+        List<DetectedFace> faces = new ArrayList<>(previewFaces.size());
+        for (DetectedFace face : previewFaces) {
+            faces.add(face.scale(scaleX, scaleY));
+        }
+        return faces;
+    }
+
+    private static BitmapRegionDecoder openDecoder(Context context, Uri source)
+            throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new IOException("Could not open " + source);
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(in, false);
+        } finally {
+            in.close();
+        }
+    }
+}
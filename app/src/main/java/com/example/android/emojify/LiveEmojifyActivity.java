@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.google.android.gms.common.images.Size;
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.MultiProcessor;
+import com.google.android.gms.vision.Tracker;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.io.IOException;
+
+/**
+ * Emojifies the camera preview in real time.
+ *
+ * The detector runs with tracking enabled, so each face keeps its id and its sprite between
+ * frames. The {@link CameraSource} only ever hands the newest frame to the detector and drops
+ * the ones that arrived while it was busy, which bounds the detection latency.
+ */
+public class LiveEmojifyActivity extends AppCompatActivity {
+
+    private static final String TAG = LiveEmojifyActivity.class.getSimpleName();
+
+    private static final int REQUEST_CAMERA_PERMISSION = 2;
+
+    // A small preview keeps detection fast on mid-range devices
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+    private static final float PREVIEW_FPS = 30f;
+
+    // Frames a face may be missing before its tracker is dropped
+    private static final int MAX_GAP_FRAMES = 3;
+
+    private CameraSourcePreview mPreview;
+    private EmojiOverlayView mOverlay;
+
+    private CameraSource mCameraSource;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_live);
+
+        // Bind the views
+        mPreview = (CameraSourcePreview) findViewById(R.id.camera_preview);
+        mOverlay = (EmojiOverlayView) findViewById(R.id.emoji_overlay);
+
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            createCameraSource();
+        } else {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA},
+                    REQUEST_CAMERA_PERMISSION);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+            @NonNull int[] grantResults) {
+        if (requestCode == REQUEST_CAMERA_PERMISSION) {
+            if (grantResults.length > 0
+                    && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                createCameraSource();
+                startCameraSource();
+            } else {
+                // Without the camera there is nothing to show
+                Toast.makeText(this, R.string.permission_denied, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Builds a tracking detector for this activity, connects it to the overlay and builds the
+     * camera source around it.
+     *
+     * The detector is not shared through the {@link FaceDetectorManager}: its processor is
+     * bound to this activity's overlay, and the camera source releases it along with itself.
+     */
+    private void createCameraSource() {
+        FaceDetector detector = DetectorConfig.LIVE_PREVIEW.build(getApplicationContext());
+        detector.setProcessor(new MultiProcessor.Builder<>(new FaceTrackerFactory())
+                .setMaxGapFrames(MAX_GAP_FRAMES)
+                .build());
+
+        if (!detector.isOperational()) {
+            Toast.makeText(this, R.string.detector_not_operational, Toast.LENGTH_SHORT).show();
+        }
+
+        mCameraSource = new CameraSource.Builder(this, detector)
+                .setFacing(CameraSource.CAMERA_FACING_FRONT)
+                .setRequestedPreviewSize(PREVIEW_WIDTH, PREVIEW_HEIGHT)
+                .setRequestedFps(PREVIEW_FPS)
+                .build();
+    }
+
+    private void startCameraSource() {
+        if (mCameraSource == null) {
+            return;
+        }
+        try {
+            mPreview.start(mCameraSource);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start camera source", e);
+            mCameraSource.release();
+            mCameraSource = null;
+            return;
+        }
+
+        // Frames are landscape, the activity is always portrait
+        Size previewSize = mCameraSource.getPreviewSize();
+        if (previewSize != null) {
+            mOverlay.setCameraInfo(previewSize.getHeight(), previewSize.getWidth(),
+                    mCameraSource.getCameraFacing());
+        } else {
+            mOverlay.setCameraInfo(PREVIEW_HEIGHT, PREVIEW_WIDTH,
+                    CameraSource.CAMERA_FACING_FRONT);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        startCameraSource();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mPreview.stop();
+        mOverlay.clear();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Also releases the detector, which belongs to this activity alone
+        if (mCameraSource != null) {
+            mCameraSource.release();
+            mCameraSource = null;
+        }
+    }
+
+    /**
+     * Creates a tracker for every new face.
+     */
+    private class FaceTrackerFactory implements MultiProcessor.Factory<Face> {
+
+        @Override
+        public Tracker<Face> create(Face face) {
+            return new FaceTracker();
+        }
+    }
+
+    /**
+     * Forwards the updates of one tracked face to the overlay. Runs on the detector thread.
+     */
+    private class FaceTracker extends Tracker<Face> {
+
+        private int mFaceId;
+
+        @Override
+        public void onNewItem(int faceId, Face face) {
+            mFaceId = faceId;
+            mOverlay.updateFace(DetectedFace.from(face));
+        }
+
+        @Override
+        public void onUpdate(Detector.Detections<Face> detections, Face face) {
+            mOverlay.updateFace(DetectedFace.from(face));
+        }
+
+        @Override
+        public void onMissing(Detector.Detections<Face> detections) {
+            mOverlay.hideFace(mFaceId);
+        }
+
+        @Override
+        public void onDone() {
+            mOverlay.removeFace(mFaceId);
+        }
+    }
+}
@@ -20,7 +20,9 @@ package com.example.android.emojify;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
+import android.content.pm.ResolveInfo;
+import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -29,9 +31,12 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -43,19 +48,63 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_IMAGE_CAPTURE = 1;
     private static final int REQUEST_STORAGE_PERMISSION = 1;
 
+    private static final String KEY_TEMP_PHOTO_PATH = "temp_photo_path";
+    private static final String KEY_SHOWING_RESULT = "showing_result";
+    private static final String KEY_EDITING = "editing";
+
+    // What the camera may do with the capture URI
+    private static final int CAPTURE_URI_FLAGS =
+            Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+
+    // The scale seek bar goes from EditSession.MIN_SCALE in steps of 1%
+    private static final float SCALE_STEPS = 100f;
+
     private ImageView mImageView;
 
     private Button mEmojifyButton;
+    private Button mLiveButton;
     private FloatingActionButton mShareFab;
     private FloatingActionButton mSaveFab;
     private FloatingActionButton mClearFab;
+    private FloatingActionButton mEditFab;
+
+    private View mEditPanel;
+    private SeekBar mLeftEyeSeekBar;
+    private SeekBar mRightEyeSeekBar;
+    private SeekBar mSmilingSeekBar;
+    private SeekBar mScaleSeekBar;
 
     private TextView mTitleTextView;
+    private ProgressBar mProgressBar;
+
+    // Holds the photo, the running job and the result across configuration changes
+    private EmojifyStateFragment mState;
+
+    private final EmojifyPipeline.Callback mPipelineCallback = new EmojifyPipeline.Callback() {
+        @Override
+        public void onStageChanged(EmojifyPipeline.Stage stage) {
+            mProgressBar.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        public void onComplete(EmojifyPipeline.Result result) {
+            mProgressBar.setVisibility(View.GONE);
 
-    private String mTempPhotoPath;
+            // Set the new bitmap to the ImageView
+            mImageView.setImageBitmap(result.bitmap);
 
-    private Bitmap mResultsBitmap;
+            if (result.faces.isEmpty()) {
+                showNoFacesMessage();
+            }
+        }
 
+        @Override
+        public void onError(Exception e) {
+            mProgressBar.setVisibility(View.GONE);
+            Toast.makeText(MainActivity.this, R.string.emojify_failed, Toast.LENGTH_SHORT)
+                    .show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,10 +114,57 @@ public class MainActivity extends AppCompatActivity {
         // Bind the views
         mImageView = (ImageView) findViewById(R.id.image_view);
         mEmojifyButton = (Button) findViewById(R.id.emojify_button);
+        mLiveButton = (Button) findViewById(R.id.live_button);
         mShareFab = (FloatingActionButton) findViewById(R.id.share_button);
         mSaveFab = (FloatingActionButton) findViewById(R.id.save_button);
         mClearFab = (FloatingActionButton) findViewById(R.id.clear_button);
         mTitleTextView = (TextView) findViewById(R.id.title_text_view);
+        mProgressBar = (ProgressBar) findViewById(R.id.progress_bar);
+        mEditFab = (FloatingActionButton) findViewById(R.id.edit_button);
+        mEditPanel = findViewById(R.id.edit_panel);
+        mLeftEyeSeekBar = (SeekBar) findViewById(R.id.left_eye_seek_bar);
+        mRightEyeSeekBar = (SeekBar) findViewById(R.id.right_eye_seek_bar);
+        mSmilingSeekBar = (SeekBar) findViewById(R.id.smiling_seek_bar);
+        mScaleSeekBar = (SeekBar) findViewById(R.id.scale_seek_bar);
+        setUpEditing();
+
+        mState = EmojifyStateFragment.getInstance(getSupportFragmentManager());
+        boolean showingResult = false;
+        if (savedInstanceState != null) {
+            showingResult = savedInstanceState.getBoolean(KEY_SHOWING_RESULT);
+            // After the process was killed only the saved instance state is left
+            if (mState.getTempPhotoPath() == null) {
+                mState.setTempPhotoPath(savedInstanceState.getString(KEY_TEMP_PHOTO_PATH));
+            }
+        }
+
+        if (mState.getResultsBitmap() != null || mState.isProcessing()) {
+            // Recreated after a configuration change, redisplay without any processing
+            showResultViews();
+            mImageView.setImageBitmap(mState.getResultsBitmap());
+            if (savedInstanceState != null && savedInstanceState.getBoolean(KEY_EDITING)) {
+                startEditing();
+            }
+        } else if (showingResult && mState.getTempPhotoPath() != null) {
+            // Recreated after the process was killed, the captured photo is still there
+            processAndSetImage();
+        }
+        mState.attach(mPipelineCallback);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_TEMP_PHOTO_PATH, mState.getTempPhotoPath());
+        outState.putBoolean(KEY_SHOWING_RESULT, mClearFab.getVisibility() == View.VISIBLE);
+        outState.putBoolean(KEY_EDITING, mEditPanel.getVisibility() == View.VISIBLE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A running job keeps going in the state fragment, which cancels it once finishing
+        mState.detach();
     }
 
     /**
@@ -92,6 +188,15 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * OnClick method for the "Live" Button. Emojifies the camera preview in real time.
+     *
+     * @param view The live button.
+     */
+    public void emojifyLive(View view) {
+        startActivity(new Intent(this, LiveEmojifyActivity.class));
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
             @NonNull int[] grantResults) {
@@ -116,6 +221,9 @@ public class MainActivity extends AppCompatActivity {
      */
     private void launchCamera() {
 
+        // A new photo replaces whatever is still being processed
+        cancelProcessing();
+
         // Create the capture image intent
         Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
 
@@ -133,18 +241,19 @@ public class MainActivity extends AppCompatActivity {
             if (photoFile != null) {
 
                 // Get the path of the temporary file
-                mTempPhotoPath = photoFile.getAbsolutePath();
-
-                // Workaround to get the content URI for the image file
-                /*
-                    On API 17 tablet, the camera app doesn't seem to
-                     recognise Emojify's File Provider and thus no
-                     photo is captured and displayed.
-                 */
-                Uri photoURI = Uri.fromFile(photoFile);
+                mState.setTempPhotoPath(photoFile.getAbsolutePath());
 
-                // Add the URI so the camera can store the image
+                // The file is in private storage, the camera writes it through a content URI
+                Uri photoURI = BitmapUtils.getCaptureUri(this, photoFile);
                 takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, photoURI);
+                takePictureIntent.addFlags(CAPTURE_URI_FLAGS);
+
+                // Before API 21 the flags do not cover EXTRA_OUTPUT, so grant every camera app
+                for (ResolveInfo info : getPackageManager().queryIntentActivities(
+                        takePictureIntent, PackageManager.MATCH_DEFAULT_ONLY)) {
+                    grantUriPermission(info.activityInfo.packageName, photoURI,
+                            CAPTURE_URI_FLAGS);
+                }
 
                 // Launch the camera activity
                 startActivityForResult(takePictureIntent, REQUEST_IMAGE_CAPTURE);
@@ -155,6 +264,12 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMAGE_CAPTURE && mState.getTempPhotoPath() != null) {
+            // The camera is done with the capture
+            revokeUriPermission(BitmapUtils.getCaptureUri(this,
+                    new File(mState.getTempPhotoPath())), CAPTURE_URI_FLAGS);
+        }
+
         // If the image capture activity was called and was successful
 
         if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_OK) {
@@ -163,32 +278,187 @@ public class MainActivity extends AppCompatActivity {
         } else {
 
             // Otherwise, delete the temporary image file
-            BitmapUtils.deleteImageFile(this, mTempPhotoPath);
+            deleteTempPhoto();
         }
     }
 
     /**
      * Method for processing the captured image and setting it to the TextView.
+     * The work runs in the background, the progress bar shows until it is done.
      */
     private void processAndSetImage() {
 
         // Toggle Visibility of the views
+        showResultViews();
+        mProgressBar.setVisibility(View.VISIBLE);
+
+        // Resample, detect the faces and overlay the appropriate emoji off the main thread
+        mState.startProcessing(this);
+    }
+
+    /**
+     * Shows the views for a processed photo in place of the start screen.
+     */
+    private void showResultViews() {
         mEmojifyButton.setVisibility(View.GONE);
+        mLiveButton.setVisibility(View.GONE);
         mTitleTextView.setVisibility(View.GONE);
         mSaveFab.setVisibility(View.VISIBLE);
         mShareFab.setVisibility(View.VISIBLE);
         mClearFab.setVisibility(View.VISIBLE);
+        mEditFab.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Hooks the edit panel seek bars and face taps up to the edit session.
+     */
+    private void setUpEditing() {
+        SeekBar.OnSeekBarChangeListener listener = new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                EditSession session = mState.getEditSession(MainActivity.this);
+                if (!fromUser || session == null) {
+                    return;
+                }
+                float value = progress / SCALE_STEPS;
+                EmojiClassifier classifier = session.getClassifier();
+                Rect changed;
+                if (seekBar == mLeftEyeSeekBar) {
+                    changed = session.setClassifier(classifier.withLeftEyeOpenThreshold(value));
+                } else if (seekBar == mRightEyeSeekBar) {
+                    changed = session.setClassifier(classifier.withRightEyeOpenThreshold(value));
+                } else if (seekBar == mSmilingSeekBar) {
+                    changed = session.setClassifier(classifier.withSmilingThreshold(value));
+                } else {
+                    changed = session.setScale(EditSession.MIN_SCALE + value);
+                }
+                onEdited(changed);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        };
+        mLeftEyeSeekBar.setOnSeekBarChangeListener(listener);
+        mRightEyeSeekBar.setOnSeekBarChangeListener(listener);
+        mSmilingSeekBar.setOnSeekBarChangeListener(listener);
+        mScaleSeekBar.setOnSeekBarChangeListener(listener);
+
+        mImageView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (mEditPanel.getVisibility() != View.VISIBLE) {
+                    return false;
+                }
+                if (event.getAction() == MotionEvent.ACTION_UP) {
+                    cycleEmojiAt(event.getX(), event.getY());
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * OnClick method for the edit button, shows or hides the edit panel.
+     *
+     * @param view The edit button.
+     */
+    public void toggleEditing(View view) {
+        if (mEditPanel.getVisibility() == View.VISIBLE) {
+            mEditPanel.setVisibility(View.GONE);
+        } else if (mState.getResultsBitmap() != null) {
+            if (startEditing()) {
+                Toast.makeText(this, R.string.edit_hint, Toast.LENGTH_SHORT).show();
+            } else {
+                showNoFacesMessage();
+            }
+        }
+    }
+
+    /**
+     * Shows the edit panel with the values of the edit session.
+     *
+     * @return False if the result has no faces to edit.
+     */
+    private boolean startEditing() {
+        EditSession session = mState.getEditSession(this);
+        if (session == null) {
+            return false;
+        }
+        EmojiClassifier classifier = session.getClassifier();
+        mLeftEyeSeekBar.setProgress(Math.round(classifier.leftEyeOpenThreshold * SCALE_STEPS));
+        mRightEyeSeekBar.setProgress(Math.round(classifier.rightEyeOpenThreshold * SCALE_STEPS));
+        mSmilingSeekBar.setProgress(Math.round(classifier.smilingThreshold * SCALE_STEPS));
+        mScaleSeekBar.setProgress(
+                Math.round((session.getScale() - EditSession.MIN_SCALE) * SCALE_STEPS));
+
+        // The session may draw on a copy of the result
+        mImageView.setImageBitmap(session.getResult());
+        mEditPanel.setVisibility(View.VISIBLE);
+        return true;
+    }
+
+    /**
+     * Changes the emoji of the face under a touch on the image view.
+     */
+    private void cycleEmojiAt(float viewX, float viewY) {
+        EditSession session = mState.getEditSession(this);
+        if (session == null) {
+            return;
+        }
 
-        // Resample the saved image to fit the ImageView
-        mResultsBitmap = BitmapUtils.resamplePic(this, mTempPhotoPath);
+        // Map the touch from the view to the picture
+        Matrix viewToImage = new Matrix();
+        if (!mImageView.getImageMatrix().invert(viewToImage)) {
+            return;
+        }
+        float[] point = {viewX - mImageView.getPaddingLeft(), viewY - mImageView.getPaddingTop()};
+        viewToImage.mapPoints(point);
+
+        int face = session.faceAt(point[0], point[1]);
+        if (face >= 0) {
+            onEdited(session.cycleEmoji(face));
+        }
+    }
+
+    /**
+     * Shows an edit of the result, which also needs a new save.
+     */
+    private void onEdited(Rect changed) {
+        if (!changed.isEmpty()) {
+            mState.onResultEdited();
+            mImageView.invalidate();
+        }
+    }
 
-        // Detect the faces and overlay the appropriate emoji
-        mResultsBitmap = Emojifier.detectFacesAndOverlayEmoji(this, mResultsBitmap);
+    /**
+     * Explains why no emoji was drawn: either the detector is not ready or there are no faces.
+     */
+    private void showNoFacesMessage() {
+        FaceDetectorManager detectorManager = FaceDetectorManager.getInstance(this);
+        if (detectorManager.isReady()) {
+            Toast.makeText(this, R.string.no_faces_detected, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        // Set the new bitmap to the ImageView
-        mImageView.setImageBitmap(mResultsBitmap);
+        // The face detector is not operational.
+        Toast.makeText(this, R.string.detector_not_operational, Toast.LENGTH_SHORT).show();
+        if (detectorManager.getState() == FaceDetectorManager.State.LOW_STORAGE) {
+            Toast.makeText(this, R.string.low_storage_error, Toast.LENGTH_LONG).show();
+        }
     }
 
+    /**
+     * Cancels the photo that is being processed, if any.
+     */
+    private void cancelProcessing() {
+        mState.cancelProcessing();
+        mProgressBar.setVisibility(View.GONE);
+    }
 
     /**
      * OnClick method for the save button.
@@ -196,11 +466,13 @@ public class MainActivity extends AppCompatActivity {
      * @param view The save button.
      */
     public void saveMe(View view) {
-        // Delete the temporary image file
-        BitmapUtils.deleteImageFile(this, mTempPhotoPath);
+        // Nothing to save until the photo has been processed
+        if (mState.getResultsBitmap() == null) {
+            return;
+        }
 
-        // Save the image
-        BitmapUtils.saveImage(this, mResultsBitmap);
+        // Save the image, once per result
+        mState.save(this);
     }
 
     /**
@@ -209,14 +481,20 @@ public class MainActivity extends AppCompatActivity {
      * @param view The share button.
      */
     public void shareMe(View view) {
-        // Delete the temporary image file
-        BitmapUtils.deleteImageFile(this, mTempPhotoPath);
+        // Nothing to share until the photo has been processed
+        if (mState.getResultsBitmap() == null) {
+            return;
+        }
 
-        // Save the image
-        BitmapUtils.saveImage(this, mResultsBitmap);
+        // Share the saved image, saving it first if needed
+        mState.share(this);
+    }
 
-        // Share the image
-        BitmapUtils.shareImage(this, mTempPhotoPath);
+    /**
+     * Deletes the captured photo, if it has not been deleted yet.
+     */
+    private void deleteTempPhoto() {
+        mState.deleteTempPhoto(this);
     }
 
     /**
@@ -225,15 +503,22 @@ public class MainActivity extends AppCompatActivity {
      * @param view The clear button.
      */
     public void clearImage(View view) {
+        // Stop processing the photo
+        cancelProcessing();
+
         // Clear the image and toggle the view visibility
         mImageView.setImageResource(0);
+        mState.setResultsBitmap(null);
         mEmojifyButton.setVisibility(View.VISIBLE);
+        mLiveButton.setVisibility(View.VISIBLE);
         mTitleTextView.setVisibility(View.VISIBLE);
         mShareFab.setVisibility(View.GONE);
         mSaveFab.setVisibility(View.GONE);
         mClearFab.setVisibility(View.GONE);
+        mEditFab.setVisibility(View.GONE);
+        mEditPanel.setVisibility(View.GONE);
 
         // Delete the temporary image file
-        BitmapUtils.deleteImageFile(this, mTempPhotoPath);
+        deleteTempPhoto();
     }
 }
@@ -0,0 +1,265 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.v4.app.ActivityManagerCompat;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Central memory budget for bitmaps and caches, sized from the device memory class.
+ *
+ * The budget picks the preview bitmap config and size limit and the bitmap pool size, and
+ * empties the caches when the system asks the app to trim memory.
+ * {@link #describeUsage()} reports what is currently held, for diagnostics.
+ */
+class MemoryBudget {
+
+    private static final String TAG = MemoryBudget.class.getSimpleName();
+
+    /**
+     * How much memory the device gives the app.
+     */
+    enum Tier {
+        // Low RAM devices and heaps of 64 MB or less
+        LOW,
+        // Typical phones
+        NORMAL,
+        // Heaps above 192 MB
+        HIGH
+    }
+
+    static final int LOW_MEMORY_CLASS_MB = 64;
+    static final int HIGH_MEMORY_CLASS_MB = 192;
+
+    // Largest preview, in pixels, decoded for each tier
+    private static final int LOW_MAX_PREVIEW_PIXELS = 1024 * 1024;
+    private static final int NORMAL_MAX_PREVIEW_PIXELS = 4 * 1024 * 1024;
+    private static final int HIGH_MAX_PREVIEW_PIXELS = 8 * 1024 * 1024;
+
+    private static MemoryBudget sInstance;
+
+    private final int mMemoryClassMb;
+    private final boolean mLowRamDevice;
+    private final Tier mTier;
+
+    private volatile int mLastTrimLevel;
+
+    MemoryBudget(int memoryClassMb, boolean lowRamDevice) {
+        mMemoryClassMb = memoryClassMb;
+        mLowRamDevice = lowRamDevice;
+        mTier = tierFor(memoryClassMb, lowRamDevice);
+    }
+
+    /**
+     * Returns the process-wide memory budget.
+     *
+     * @param context The application context.
+     */
+    static synchronized MemoryBudget getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new MemoryBudget(activityManager.getMemoryClass(),
+                    ActivityManagerCompat.isLowRamDevice(activityManager));
+            Log.d(TAG, "Memory class " + sInstance.mMemoryClassMb + " MB, low RAM "
+                    + sInstance.mLowRamDevice + ": " + sInstance.mTier);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Classifies a device by its memory class and low RAM flag.
+     */
+    static Tier tierFor(int memoryClassMb, boolean lowRamDevice) {
+        if (lowRamDevice || memoryClassMb <= LOW_MEMORY_CLASS_MB) {
+            return Tier.LOW;
+        }
+        return memoryClassMb > HIGH_MEMORY_CLASS_MB ? Tier.HIGH : Tier.NORMAL;
+    }
+
+    Tier getTier() {
+        return mTier;
+    }
+
+    /**
+     * @return The config of the preview bitmap: RGB_565 halves it on low memory devices,
+     * photos have no alpha to lose.
+     */
+    Bitmap.Config previewConfig() {
+        return mTier == Tier.LOW ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return The largest number of pixels the preview is decoded at.
+     */
+    int maxPreviewPixels() {
+        switch (mTier) {
+            case LOW:
+                return LOW_MAX_PREVIEW_PIXELS;
+            case HIGH:
+                return HIGH_MAX_PREVIEW_PIXELS;
+            default:
+                return NORMAL_MAX_PREVIEW_PIXELS;
+        }
+    }
+
+    /**
+     * Shrinks a target size, keeping its aspect ratio, until it has no more than
+     * {@link #maxPreviewPixels()} pixels.
+     *
+     * @param targetW The requested width.
+     * @param targetH The requested height.
+     * @return The width and height to decode at.
+     */
+    int[] fitPreview(int targetW, int targetH) {
+        return fitToPixels(targetW, targetH, maxPreviewPixels());
+    }
+
+    static int[] fitToPixels(int width, int height, int maxPixels) {
+        long pixels = (long) width * height;
+        if (pixels <= maxPixels) {
+            return new int[] {width, height};
+        }
+        double scale = Math.sqrt((double) maxPixels / pixels);
+        return new int[] {
+                Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale))
+        };
+    }
+
+    /**
+     * Checks whether a full ARGB_8888 bitmap fits in what is left of the heap, with half of
+     * it to spare for sprites, the encoder and the rest of the app.
+     *
+     * @param width  The width of the bitmap.
+     * @param height The height of the bitmap.
+     */
+    boolean canHoldBitmap(int width, int height) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (long) width * height * 4 <= available / 2;
+    }
+
+    /**
+     * @return How many decode buffers the bitmap pool keeps.
+     */
+    int bitmapPoolSize() {
+        return mTier == Tier.LOW ? 1 : 2;
+    }
+
+    /**
+     * @return The largest decode buffer the bitmap pool keeps, in bytes: an ARGB_8888
+     * bitmap of {@link #maxPreviewPixels()}. Full resolution decodes are not kept.
+     */
+    long maxPooledBitmapBytes() {
+        return maxPreviewPixels() * 4L;
+    }
+
+    /**
+     * Picks how many images can be decoded at once from what is left of the heap, with half
+     * of it to spare as in {@link #canHoldBitmap(int, int)}, less what the bitmap pool may
+     * keep.
+     *
+     * @param bytesPerImage The most memory one image holds while it is processed.
+     * @return The number of images, at least 1.
+     */
+    int imagesInFlight(long bytesPerImage) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return imagesInFlight(available, bitmapPoolSize() * maxPooledBitmapBytes(),
+                bytesPerImage);
+    }
+
+    static int imagesInFlight(long availableBytes, long pooledBytes, long bytesPerImage) {
+        long budget = availableBytes / 2 - pooledBytes;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / bytesPerImage));
+    }
+
+    /**
+     * Frees memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}. Everything
+     * released here is rebuilt on demand.
+     *
+     * The levels are two scales: the RUNNING levels come while the app is in the
+     * foreground and the device is short of memory, the levels from
+     * {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} up come once the app is in the
+     * background. Hiding the UI alone frees nothing, the user often comes straight back.
+     *
+     * @param context The application context.
+     * @param level   The trim level.
+     */
+    void onTrimMemory(Context context, int level) {
+        mLastTrimLevel = level;
+        if (shouldClearBitmapPool(level)) {
+            // Decode buffers are the largest and cheapest to lose
+            BitmapPool.clear();
+        }
+        if (shouldReleaseAtlas(level)) {
+            // The atlas is built again from the drawables on the next emojify
+            EmojiAtlas.release();
+        }
+        Log.d(TAG, "Trimmed memory at level " + level + "\n" + describeUsage(context));
+    }
+
+    /**
+     * @return True if the decode buffers go at a trim level: when running low, or once the
+     * app is in the background list.
+     */
+    static boolean shouldClearBitmapPool(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+        }
+        return level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+    }
+
+    /**
+     * @return True if the emoji atlas goes at a trim level: when running critically low, or
+     * once the app is in the middle of the background list.
+     */
+    static boolean shouldReleaseAtlas(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        }
+        return level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+    }
+
+    /**
+     * Describes the memory held by the heap, the native heap and each cache.
+     *
+     * @param context The application context.
+     */
+    String describeUsage(Context context) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        return String.format(Locale.US,
+                "Memory budget: tier=%s, memoryClass=%d MB, lowRam=%b, lastTrimLevel=%d%n"
+                        + "  heap: %d KB used of %d KB%n"
+                        + "  native heap: %d KB%n"
+                        + "  %s%n"
+                        + "  bitmap pool: %d KB of %d bitmaps max",
+                mTier, mMemoryClassMb, mLowRamDevice, mLastTrimLevel,
+                heapUsed / 1024, runtime.maxMemory() / 1024,
+                Debug.getNativeHeapAllocatedSize() / 1024,
+                EmojiAtlas.describe(),
+                BitmapPool.sizeInBytes() / 1024, BitmapPool.getMaxSize());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import com.example.android.emojify.BatchingRequestQueue.Admission;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the admission, batching and metrics of {@link BatchingRequestQueue}.
+ */
+public class BatchingRequestQueueTest {
+
+    private static class FakeClock implements BatchingRequestQueue.Clock {
+
+        long nanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private final FakeClock mClock = new FakeClock();
+
+    @Test
+    public void offer_signalsBackpressureThenRejects() throws Exception {
+        BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(3, 2, mClock);
+        assertEquals(Admission.ACCEPTED, queue.offer(1));
+        assertEquals(Admission.ACCEPTED, queue.offer(2));
+        assertEquals(Admission.BUSY, queue.offer(3));
+        assertEquals(Admission.REJECTED, queue.offer(4));
+        assertEquals(3, queue.depth());
+
+        BatchingRequestQueue.Stats stats = queue.stats();
+        assertEquals(3, stats.accepted);
+        assertEquals(1, stats.busy);
+        assertEquals(1, stats.rejected);
+        assertEquals(3, stats.maxDepth);
+    }
+
+    @Test
+    public void takeBatch_returnsOldestFirstUpToTheLimit() throws Exception {
+        BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(8, 8, mClock);
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(i);
+        }
+        assertEquals(Arrays.asList(1, 2, 3), queue.takeBatch(3, 0));
+        assertEquals(Arrays.asList(4, 5), queue.takeBatch(3, 0));
+        assertEquals(2, queue.stats().batches);
+        assertEquals(2.5, queue.stats().meanBatchSize(), 1e-9);
+    }
+
+    @Test
+    public void takeBatch_afterCloseDrainsThenReturnsEmpty() throws Exception {
+        BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(4, 4, mClock);
+        queue.offer(1);
+        queue.close();
+        assertEquals(Admission.REJECTED, queue.offer(2));
+        assertEquals(Collections.singletonList(1), queue.takeBatch(4, 1000));
+        assertEquals(Collections.<Integer>emptyList(), queue.takeBatch(4, 1000));
+    }
+
+    @Test
+    public void drain_removesEverythingQueued() throws Exception {
+        BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(4, 4, mClock);
+        queue.offer(1);
+        queue.offer(2);
+        queue.close();
+        assertEquals(Arrays.asList(1, 2), queue.drain());
+        assertEquals(0, queue.depth());
+        assertEquals(Collections.<Integer>emptyList(), queue.takeBatch(4, 1000));
+    }
+
+    @Test
+    public void takeBatch_wakesUpForARequestFromAnotherThread() throws Exception {
+        final BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(4, 4, mClock);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(7);
+            }
+        });
+        producer.start();
+        List<Integer> batch = queue.takeBatch(1, 0);
+        producer.join();
+        assertEquals(Collections.singletonList(7), batch);
+    }
+
+    @Test
+    public void stats_measureWaitServiceAndThroughput() throws Exception {
+        BatchingRequestQueue<Integer> queue = new BatchingRequestQueue<>(8, 8, mClock);
+        queue.offer(1);
+        queue.offer(2);
+        mClock.advanceMillis(100);
+        queue.offer(3);
+        queue.offer(4);
+
+        List<Integer> batch = queue.takeBatch(2, 0);
+        queue.onBatchDone(batch.size(), TimeUnit.MILLISECONDS.toNanos(400));
+        // Two requests are still queued, at 200 ms each
+        assertEquals(400, queue.estimatedDrainMillis());
+
+        mClock.advanceMillis(900);
+        BatchingRequestQueue.Stats stats = queue.stats();
+        assertEquals(2, stats.depth);
+        assertEquals(2, stats.completed);
+        assertEquals(200, stats.serviceMillisPerRequest);
+        // Both waited 100 ms, the histogram reports the upper bound of the bucket
+        assertTrue(stats.waitMillisP50 >= 100 && stats.waitMillisP50 < 128);
+        // Two requests completed in the second since the first arrived
+        assertEquals(2.0, stats.requestsPerSecond, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsWatermarkAboveCapacity() throws Exception {
+        new BatchingRequestQueue<Integer>(2, 3, mClock);
+    }
+}
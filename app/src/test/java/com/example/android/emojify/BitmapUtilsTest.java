@@ -0,0 +1,49 @@
+package com.example.android.emojify;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the sample size math and the temporary file sweep in
+ * {@link BitmapUtils}.
+ */
+public class BitmapUtilsTest {
+
+    @Test
+    public void calculateInSampleSize_keepsImageAtLeastAsLargeAsTarget() throws Exception {
+        // 4000x3000 fits 1080x810, halving twice would go below the target
+        assertEquals(2, BitmapUtils.calculateInSampleSize(4000, 3000, 1080, 810));
+        assertEquals(4, BitmapUtils.calculateInSampleSize(4000, 3000, 1000, 750));
+    }
+
+    @Test
+    public void calculateInSampleSize_smallPhotoIsNotSubsampled() throws Exception {
+        assertEquals(1, BitmapUtils.calculateInSampleSize(640, 480, 640, 480));
+        assertEquals(1, BitmapUtils.calculateInSampleSize(100, 100, 100, 100));
+    }
+
+    @Test
+    public void deleteExpiredFiles_keepsRecentFiles() throws Exception {
+        File directory = File.createTempFile("captures", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        File old = new File(directory, "old.jpg");
+        File recent = new File(directory, "recent.jpg");
+        assertTrue(old.createNewFile());
+        assertTrue(recent.createNewFile());
+        assertTrue(old.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+
+        assertEquals(1, BitmapUtils.deleteExpiredFiles(directory, 60 * 60 * 1000));
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+
+        assertEquals(1, BitmapUtils.deleteExpiredFiles(directory, 0));
+        assertTrue(directory.delete());
+        assertEquals(0, BitmapUtils.deleteExpiredFiles(directory, 0));
+    }
+}
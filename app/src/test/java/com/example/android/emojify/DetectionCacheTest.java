@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit tests for the entry format and hash of {@link DetectionCache}.
+ */
+public class DetectionCacheTest {
+
+    @Test
+    public void entry_roundTrips() throws Exception {
+        DetectedFace face = new DetectedFace(3, 10.5f, 20f, 100f, 120f, 0.9f, 0.1f, 0.75f);
+        DetectionCache.Entry entry = new DetectionCache.Entry(640, 480,
+                Collections.singletonList(face));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DetectionCache.write(entry, out);
+        DetectionCache.Entry read = DetectionCache.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(640, read.width);
+        assertEquals(480, read.height);
+        assertEquals(1, read.faces.size());
+        DetectedFace readFace = read.faces.get(0);
+        assertEquals(3, readFace.id);
+        assertEquals(10.5f, readFace.left, 0f);
+        assertEquals(120f, readFace.height, 0f);
+        assertEquals(0.1f, readFace.rightEyeOpenProbability, 0f);
+        assertEquals(0.75f, readFace.smilingProbability, 0f);
+    }
+
+    @Test
+    public void read_rejectsOtherVersions() throws Exception {
+        byte[] bytes = {0, 0, 0, (byte) (DetectionCache.VERSION + 1), 0, 0, 0, 1};
+        assertNull(DetectionCache.read(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void hash_dependsOnEveryValueAndOrder() throws Exception {
+        long base = DetectionCache.hash(1L, new int[] {1, 2, 3}, 3);
+        assertEquals(base, DetectionCache.hash(1L, new int[] {1, 2, 3}, 3));
+        assertNotEquals(base, DetectionCache.hash(1L, new int[] {1, 2, 4}, 3));
+        assertNotEquals(base, DetectionCache.hash(1L, new int[] {3, 2, 1}, 3));
+        assertNotEquals(base, DetectionCache.hash(1L, new int[] {1, 2, 3, 4}, 4));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import com.example.android.emojify.DetectorPolicy.FaceCountHint;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the choices and learning of {@link DetectorPolicy}.
+ */
+public class DetectorPolicyTest {
+
+    @Test
+    public void choose_selfieTakesTheCheapestPath() throws Exception {
+        DetectorConfig config = new DetectorPolicy(null).choose(640, 480, FaceCountHint.SINGLE);
+        assertEquals(FaceDetector.FAST_MODE, config.mode);
+        assertEquals(DetectorPolicy.MIN_FACE_SIZE_SELFIE, config.minFaceSize, 0f);
+        assertTrue(config.prominentFaceOnly);
+        assertEquals(FaceDetector.ALL_CLASSIFICATIONS, config.classificationType);
+    }
+
+    @Test
+    public void choose_defaultsToTheStillImageDetector() throws Exception {
+        DetectorConfig config = new DetectorPolicy(null).choose(640, 480, FaceCountHint.UNKNOWN);
+        assertEquals(DetectorConfig.STILL_IMAGE, config);
+    }
+
+    @Test
+    public void choose_crowdsUseAccurateModeOnlyWithinBudget() throws Exception {
+        DetectorPolicy policy = new DetectorPolicy(null);
+        assertEquals(FaceDetector.ACCURATE_MODE,
+                policy.choose(640, 480, FaceCountHint.MANY).mode);
+        assertEquals(FaceDetector.FAST_MODE,
+                policy.choose(4000, 3000, FaceCountHint.MANY).mode);
+
+        policy.setLatencyBudgetMillis(10);
+        assertEquals(FaceDetector.FAST_MODE,
+                policy.choose(640, 480, FaceCountHint.MANY).mode);
+
+        // A request can bring a budget of its own
+        DetectorPolicy.Hints patient = new DetectorPolicy.Hints(FaceCountHint.MANY, 10000);
+        assertEquals(FaceDetector.ACCURATE_MODE, policy.choose(4000, 3000, patient).mode);
+    }
+
+    @Test
+    public void record_learnsTimingsAndFaceCounts() throws Exception {
+        DetectorPolicy policy = new DetectorPolicy(null);
+        DetectorConfig accurate = policy.choose(640, 480, FaceCountHint.MANY);
+
+        // A slow device: accurate mode no longer fits the budget
+        for (int i = 0; i < 20; i++) {
+            policy.record(accurate, 1000, 1000, 2000, 5);
+        }
+        assertEquals(2000f, policy.predictMillis(FaceDetector.ACCURATE_MODE, 1000, 1000), 50f);
+        assertEquals(FaceDetector.FAST_MODE, policy.choose(640, 480, FaceCountHint.MANY).mode);
+
+        // Mostly crowds: unknown pictures look for small faces too
+        DetectorConfig config = policy.choose(640, 480, FaceCountHint.UNKNOWN);
+        assertEquals(DetectorPolicy.MIN_FACE_SIZE_CROWD, config.minFaceSize, 0f);
+    }
+
+    @Test
+    public void choose_selfiesDoNotNarrowTheSearchForUnknownPictures() throws Exception {
+        DetectorPolicy policy = new DetectorPolicy(null);
+        for (int i = 0; i < 20; i++) {
+            policy.record(DetectorConfig.STILL_IMAGE, 640, 480, 30, 1);
+        }
+
+        // A group photo after a run of selfies still finds every face
+        DetectorConfig config = policy.choose(640, 480, FaceCountHint.UNKNOWN);
+        assertEquals(DetectorConfig.STILL_IMAGE, config);
+        assertFalse(config.prominentFaceOnly);
+    }
+
+    @Test
+    public void isSelfie_acceptsOnlyALargeFace() throws Exception {
+        DetectedFace large = new DetectedFace(0, 100, 100, 200, 220, 1f, 1f, 1f);
+        DetectedFace small = new DetectedFace(1, 300, 100, 100, 110, 1f, 1f, 1f);
+        assertTrue(DetectorPolicy.isSelfie(Collections.singletonList(large), 640));
+        assertFalse(DetectorPolicy.isSelfie(Collections.singletonList(small), 640));
+        assertFalse(DetectorPolicy.isSelfie(Arrays.asList(large, small), 640));
+        assertFalse(DetectorPolicy.isSelfie(Collections.<DetectedFace>emptyList(), 640));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import com.example.android.emojify.Emojifier.Emoji;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for the lookup table and hysteresis of {@link EmojiClassifier}.
+ */
+public class EmojiClassifierTest {
+
+    private static DetectedFace face(float leftEyeOpen, float rightEyeOpen, float smiling) {
+        return new DetectedFace(0, 0, 0, 100, 100, leftEyeOpen, rightEyeOpen, smiling);
+    }
+
+    @Test
+    public void classify_everyCombinationOfEyesAndSmile() throws Exception {
+        EmojiClassifier classifier = EmojiClassifier.DEFAULT;
+        assertEquals(Emoji.SMILE, classifier.classify(face(0.9f, 0.9f, 0.9f)));
+        assertEquals(Emoji.FROWN, classifier.classify(face(0.9f, 0.9f, 0.1f)));
+        assertEquals(Emoji.LEFT_WINK, classifier.classify(face(0.1f, 0.9f, 0.9f)));
+        assertEquals(Emoji.RIGHT_WINK, classifier.classify(face(0.9f, 0.1f, 0.9f)));
+        assertEquals(Emoji.LEFT_WINK_FROWN, classifier.classify(face(0.1f, 0.9f, 0.1f)));
+        assertEquals(Emoji.RIGHT_WINK_FROWN, classifier.classify(face(0.9f, 0.1f, 0.1f)));
+        assertEquals(Emoji.CLOSED_EYE_SMILE, classifier.classify(face(0.1f, 0.1f, 0.9f)));
+        assertEquals(Emoji.CLOSED_EYE_FROWN, classifier.classify(face(0.1f, 0.1f, 0.1f)));
+    }
+
+    @Test
+    public void classify_probabilityAtThresholdDoesNotCount() throws Exception {
+        assertEquals(Emoji.FROWN, EmojiClassifier.DEFAULT.classify(face(0.9f, 0.9f, 0.5f)));
+        // The detector reports -1 when it could not compute a probability
+        assertEquals(Emoji.CLOSED_EYE_FROWN,
+                EmojiClassifier.DEFAULT.classify(face(-1f, -1f, -1f)));
+    }
+
+    @Test
+    public void classify_usesEditedThresholds() throws Exception {
+        EmojiClassifier classifier = EmojiClassifier.DEFAULT.withSmilingThreshold(0.2f);
+        assertEquals(Emoji.SMILE, classifier.classify(face(0.9f, 0.9f, 0.3f)));
+    }
+
+    @Test
+    public void classifyTracked_hysteresisKeepsThePreviousEmoji() throws Exception {
+        EmojiClassifier classifier = EmojiClassifier.DEFAULT.withHysteresis(0.1f);
+        DetectedFace hovering = face(0.9f, 0.9f, 0.55f);
+
+        assertEquals(Emoji.SMILE, classifier.classify(hovering));
+        assertEquals(Emoji.FROWN, classifier.classify(hovering, Emoji.FROWN));
+        assertEquals(Emoji.SMILE, classifier.classify(face(0.9f, 0.9f, 0.45f), Emoji.SMILE));
+    }
+
+    @Test
+    public void classifyTracked_clearCrossingChangesTheEmoji() throws Exception {
+        EmojiClassifier classifier = EmojiClassifier.DEFAULT.withHysteresis(0.1f);
+        assertEquals(Emoji.SMILE, classifier.classify(face(0.9f, 0.9f, 0.7f), Emoji.FROWN));
+        assertEquals(Emoji.RIGHT_WINK, classifier.classify(face(0.9f, 0.3f, 0.9f), Emoji.SMILE));
+    }
+}
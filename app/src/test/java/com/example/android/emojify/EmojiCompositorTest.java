@@ -0,0 +1,234 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for how {@link EmojiCompositor} splits crowds into bands, and that the
+ * bands blend exactly what a single pass blends. The bitmaps are Robolectric's native
+ * graphics, which is Skia as on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30, manifest = Config.NONE)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class EmojiCompositorTest {
+
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+
+    // A crowd whose emojis overlap their neighbours and the band edges
+    private static final int CROWD_FACES = 36;
+
+    // Enough repeats for a race between the band threads to show up
+    private static final int REPEATS = 10;
+
+    private static EmojiAtlas sAtlas;
+
+    @Before
+    public void loadAtlas() throws Exception {
+        // Robolectric runs @BeforeClass outside the sandbox the tests see
+        if (sAtlas == null) {
+            sAtlas = TestAtlas.load();
+        }
+    }
+
+    @Test
+    public void bandCount_drawsSmallGroupsOnTheCallingThread() throws Exception {
+        assertEquals(1, EmojiCompositor.bandCount(0, 4000));
+        assertEquals(1, EmojiCompositor.bandCount(EmojiCompositor.PARALLEL_MIN_FACES - 1, 4000));
+    }
+
+    @Test
+    public void bandCount_neverSplitsShortPicturesIntoThinBands() throws Exception {
+        int faces = EmojiCompositor.PARALLEL_MIN_FACES;
+        assertEquals(1, EmojiCompositor.bandCount(faces, 100));
+        for (int height = 1; height <= 4000; height += 37) {
+            int bands = EmojiCompositor.bandCount(faces, height);
+            assertTrue(bands >= 1);
+            assertTrue(bands == 1 || height / bands >= 64);
+        }
+    }
+
+    @Test
+    public void drawEmojis_bandsMatchDrawingOneAfterTheOther() throws Exception {
+        List<DetectedFace> faces = crowd();
+        List<Emojifier.Emoji> emojis = emojisFor(faces);
+        Bitmap expected = composite(faces, emojis, 1);
+        try {
+            // More bands than threads too, so several canvases share the pool
+            int[] bandCounts = {2, 3, 8, Runtime.getRuntime().availableProcessors() * 4};
+            for (int bands : bandCounts) {
+                for (int i = 0; i < REPEATS; i++) {
+                    Bitmap actual = composite(faces, emojis, bands);
+                    assertSamePixels(bands + " bands, run " + i, expected, actual);
+                    actual.recycle();
+                }
+            }
+        } finally {
+            expected.recycle();
+        }
+    }
+
+    @Test
+    public void canvasesDrawingOnOneBitmapAtOnceDoNotInterfere() throws Exception {
+        List<DetectedFace> faces = crowd();
+        List<Emojifier.Emoji> emojis = emojisFor(faces);
+        final Emojifier.Emoji[] drawn = emojis.toArray(new Emojifier.Emoji[emojis.size()]);
+        final RectF[] bounds = new RectF[drawn.length];
+        for (int i = 0; i < drawn.length; i++) {
+            DetectedFace face = faces.get(i);
+            bounds[i] = new RectF();
+            sAtlas.layout(drawn[i], face.left, face.top, face.width, face.height,
+                    Emojifier.EMOJI_SCALE_FACTOR, bounds[i]);
+        }
+        // The views draw the atlas on a canvas, drawn here from one canvas for reference
+        Bitmap expected = photo();
+        Canvas serial = new Canvas(expected);
+        for (int i = 0; i < drawn.length; i++) {
+            sAtlas.draw(serial, drawn[i], bounds[i]);
+        }
+        try {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            for (int run = 0; run < REPEATS; run++) {
+                final Bitmap actual = photo();
+                final CountDownLatch start = new CountDownLatch(1);
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                List<Thread> workers = new ArrayList<>(threads);
+                for (int band = 0; band < threads; band++) {
+                    final int top = HEIGHT * band / threads;
+                    final int bottom = HEIGHT * (band + 1) / threads;
+                    Thread worker = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Canvas canvas = new Canvas(actual);
+                                canvas.clipRect(0, top, WIDTH, bottom);
+                                // Every canvas starts drawing at the same time
+                                start.await();
+                                for (int i = 0; i < drawn.length; i++) {
+                                    sAtlas.draw(canvas, drawn[i], bounds[i]);
+                                }
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                    worker.start();
+                    workers.add(worker);
+                }
+                start.countDown();
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                if (failure.get() != null) {
+                    throw new AssertionError(failure.get());
+                }
+                assertSamePixels(threads + " canvases, run " + run, expected, actual);
+                actual.recycle();
+            }
+        } finally {
+            expected.recycle();
+        }
+    }
+
+    /**
+     * Composites the crowd onto a fresh photo in the given number of bands.
+     */
+    private static Bitmap composite(List<DetectedFace> faces, List<Emojifier.Emoji> emojis,
+            int bands) {
+        EmojiCompositor compositor = new EmojiCompositor(sAtlas, photo(), true);
+        compositor.drawEmojis(faces, emojis, Emojifier.EMOJI_SCALE_FACTOR, bands);
+        return compositor.getResult();
+    }
+
+    /**
+     * A mutable, noisy photo, the same every time.
+     */
+    private static Bitmap photo() {
+        Random random = new Random(WIDTH * 31L + HEIGHT);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        Bitmap photo = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        photo.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return photo;
+    }
+
+    /**
+     * Faces on a jittered grid, each wider than the grid spacing so their emojis overlap.
+     */
+    private static List<DetectedFace> crowd() {
+        Random random = new Random(CROWD_FACES);
+        int columns = (int) Math.ceil(Math.sqrt(CROWD_FACES));
+        int rows = (CROWD_FACES + columns - 1) / columns;
+        float cellWidth = WIDTH / (float) columns;
+        float cellHeight = HEIGHT / (float) rows;
+        List<DetectedFace> faces = new ArrayList<>(CROWD_FACES);
+        for (int i = 0; i < CROWD_FACES; i++) {
+            float size = cellWidth * (1.2f + random.nextFloat() * 0.6f);
+            float left = (i % columns) * cellWidth + (random.nextFloat() - 0.5f) * cellWidth;
+            float top = (i / columns) * cellHeight + (random.nextFloat() - 0.5f) * cellHeight;
+            faces.add(new DetectedFace(i, left, top, size, size * 1.2f, random.nextFloat(),
+                    random.nextFloat(), random.nextFloat()));
+        }
+        return faces;
+    }
+
+    private static List<Emojifier.Emoji> emojisFor(List<DetectedFace> faces) {
+        Emojifier.Emoji[] all = Emojifier.Emoji.values();
+        List<Emojifier.Emoji> emojis = new ArrayList<>(faces.size());
+        for (int i = 0; i < faces.size(); i++) {
+            emojis.add(all[i % all.length]);
+        }
+        return emojis;
+    }
+
+    private static void assertSamePixels(String message, Bitmap expected, Bitmap actual) {
+        int[] expectedPixels = new int[WIDTH * HEIGHT];
+        int[] actualPixels = new int[WIDTH * HEIGHT];
+        expected.getPixels(expectedPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        actual.getPixels(actualPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        for (int i = 0; i < expectedPixels.length; i++) {
+            if (expectedPixels[i] != actualPixels[i]) {
+                fail(String.format("%s: pixel (%d, %d) is %08x, drawn serially %08x", message,
+                        i % WIDTH, i / WIDTH, actualPixels[i], expectedPixels[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.emojify;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the histogram behind {@link EmojifyMetrics}.
+ */
+public class EmojifyMetricsTest {
+
+    @Test
+    public void histogram_smallValuesAreExact() throws Exception {
+        EmojifyMetrics.Histogram histogram = new EmojifyMetrics.Histogram();
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+        assertEquals(8, histogram.count());
+        assertEquals(3, histogram.percentile(50));
+        assertEquals(7, histogram.percentile(100));
+    }
+
+    @Test
+    public void histogram_percentilesAreWithinBucketError() throws Exception {
+        EmojifyMetrics.Histogram histogram = new EmojifyMetrics.Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        long p50 = histogram.percentile(50);
+        long p99 = histogram.percentile(99);
+        assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 5 / 4);
+        assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 990000 * 5 / 4);
+    }
+
+    @Test
+    public void histogram_resetClearsCounts() throws Exception {
+        EmojifyMetrics.Histogram histogram = new EmojifyMetrics.Histogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(95));
+    }
+}
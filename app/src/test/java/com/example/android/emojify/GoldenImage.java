@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compares pipeline output with a stored golden image.
+ *
+ * Goldens are thumbnails of the output, which keeps them small enough to check in while
+ * still showing a moved, resized or missing emoji. Small differences from the JPEG codec are
+ * tolerated per channel.
+ */
+final class GoldenImage {
+
+    static final int THUMBNAIL_MAX_DIMENSION = 192;
+
+    private GoldenImage() {
+    }
+
+    /**
+     * The outcome of a comparison.
+     */
+    static final class Diff {
+
+        final int differentPixels;
+        final int totalPixels;
+        final int maxChannelDelta;
+
+        Diff(int differentPixels, int totalPixels, int maxChannelDelta) {
+            this.differentPixels = differentPixels;
+            this.totalPixels = totalPixels;
+            this.maxChannelDelta = maxChannelDelta;
+        }
+
+        float differentFraction() {
+            return totalPixels == 0 ? 0f : (float) differentPixels / totalPixels;
+        }
+
+        @Override
+        public String toString() {
+            return differentPixels + " of " + totalPixels + " pixels differ, by up to "
+                    + maxChannelDelta;
+        }
+    }
+
+    /**
+     * Shrinks an image to the golden size with a filtered scale.
+     */
+    static Bitmap thumbnail(Bitmap image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        float scale = Math.min(1f, (float) THUMBNAIL_MAX_DIMENSION / Math.max(width, height));
+        int thumbWidth = Math.max(1, Math.round(width * scale));
+        int thumbHeight = Math.max(1, Math.round(height * scale));
+        return Bitmap.createScaledBitmap(image, thumbWidth, thumbHeight, true);
+    }
+
+    /**
+     * Stores a golden image as a PNG, replacing the previous one.
+     */
+    static void write(Bitmap image, File file) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (!image.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                throw new IOException("Could not encode " + file);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a golden image.
+     *
+     * @return The image, or null if there is no golden yet.
+     */
+    static Bitmap read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap image = BitmapFactory.decodeFile(file.getPath());
+        if (image == null) {
+            throw new IOException("Could not decode " + file);
+        }
+        return image;
+    }
+
+    /**
+     * Compares an image with its golden.
+     *
+     * @param actual    The thumbnail of the output.
+     * @param golden    The stored thumbnail.
+     * @param tolerance The largest channel difference that still counts as equal.
+     * @return The difference, with every pixel different if the sizes do not match.
+     */
+    static Diff compare(Bitmap actual, Bitmap golden, int tolerance) {
+        int width = actual.getWidth();
+        int height = actual.getHeight();
+        if (width != golden.getWidth() || height != golden.getHeight()) {
+            return new Diff(width * height, width * height, 255);
+        }
+
+        int[] a = new int[width * height];
+        int[] b = new int[width * height];
+        actual.getPixels(a, 0, width, 0, 0, width, height);
+        golden.getPixels(b, 0, width, 0, 0, width, height);
+        int different = 0;
+        int maxDelta = 0;
+        for (int i = 0; i < a.length; i++) {
+            int delta = 0;
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int channelDelta = ((a[i] >> shift) & 0xFF) - ((b[i] >> shift) & 0xFF);
+                delta = Math.max(delta, Math.abs(channelDelta));
+            }
+            maxDelta = Math.max(maxDelta, delta);
+            if (delta > tolerance) {
+                different++;
+            }
+        }
+        return new Diff(different, a.length, maxDelta);
+    }
+}
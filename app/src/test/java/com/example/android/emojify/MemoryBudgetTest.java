@@ -0,0 +1,92 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the sizing decisions of {@link MemoryBudget}.
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void tierFor_usesMemoryClassAndLowRamFlag() throws Exception {
+        assertEquals(MemoryBudget.Tier.LOW, MemoryBudget.tierFor(48, false));
+        assertEquals(MemoryBudget.Tier.LOW, MemoryBudget.tierFor(64, false));
+        assertEquals(MemoryBudget.Tier.LOW, MemoryBudget.tierFor(256, true));
+        assertEquals(MemoryBudget.Tier.NORMAL, MemoryBudget.tierFor(128, false));
+        assertEquals(MemoryBudget.Tier.NORMAL, MemoryBudget.tierFor(192, false));
+        assertEquals(MemoryBudget.Tier.HIGH, MemoryBudget.tierFor(256, false));
+    }
+
+    @Test
+    public void fitToPixels_keepsSizesWithinTheLimit() throws Exception {
+        int[] size = MemoryBudget.fitToPixels(1080, 1920, 4 * 1024 * 1024);
+        assertEquals(1080, size[0]);
+        assertEquals(1920, size[1]);
+    }
+
+    @Test
+    public void fitToPixels_shrinksLargeSizesKeepingTheirAspectRatio() throws Exception {
+        int[] size = MemoryBudget.fitToPixels(1440, 2560, 1024 * 1024);
+        assertTrue(size[0] * size[1] <= 1024 * 1024);
+        assertEquals(1440f / 2560f, (float) size[0] / size[1], 0.01f);
+        assertTrue(size[0] * size[1] > 1000 * 1000);
+    }
+
+    @Test
+    public void onTrimMemory_keepsCachesWhenOnlyTheUiIsHidden() throws Exception {
+        assertFalse(MemoryBudget.shouldClearBitmapPool(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertFalse(MemoryBudget.shouldReleaseAtlas(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertFalse(MemoryBudget.shouldClearBitmapPool(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+    }
+
+    @Test
+    public void onTrimMemory_releasesTheAtlasOnlyWhenCriticalOrDeepInTheBackground()
+            throws Exception {
+        assertTrue(MemoryBudget.shouldClearBitmapPool(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertFalse(MemoryBudget.shouldReleaseAtlas(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertTrue(MemoryBudget.shouldReleaseAtlas(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+
+        assertTrue(MemoryBudget.shouldClearBitmapPool(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertFalse(MemoryBudget.shouldReleaseAtlas(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertTrue(MemoryBudget.shouldReleaseAtlas(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertTrue(MemoryBudget.shouldReleaseAtlas(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void imagesInFlight_fitsBatchImagesInHalfTheFreeHeap() throws Exception {
+        long mb = 1024 * 1024;
+        // A NORMAL heap with room for about one 80 MB batch image, none left for a second
+        MemoryBudget normal = new MemoryBudget(128, false);
+        long pooled = normal.bitmapPoolSize() * normal.maxPooledBitmapBytes();
+        assertEquals(1, MemoryBudget.imagesInFlight(110 * mb, pooled,
+                BatchEmojifier.BYTES_PER_IMAGE));
+        assertEquals(4, MemoryBudget.imagesInFlight(2 * (4 * 80 * mb + pooled), pooled,
+                80 * mb));
+        // Never zero, a batch always makes progress
+        assertEquals(1, MemoryBudget.imagesInFlight(0, pooled, BatchEmojifier.BYTES_PER_IMAGE));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The photos the regression suite runs through the pipeline, read from {@code corpus.txt}.
+ *
+ * Each case is a synthetic photo of a fixed size with the faces a detector recorded for
+ * it, so the suite runs on a host without Play services. The corpus goes from no faces to
+ * a crowd, and from a thumbnail to a 12 megapixel camera frame.
+ */
+final class PerfCorpus {
+
+    private static final String RESOURCE = "/corpus.txt";
+
+    private PerfCorpus() {
+    }
+
+    /**
+     * A photo and the faces recorded in it.
+     */
+    static final class Case {
+
+        final String name;
+        final int width;
+        final int height;
+        // In the coordinates of the full photo
+        final List<DetectedFace> faces = new ArrayList<>();
+
+        Case(String name, int width, int height) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Maps the recorded faces onto a resampled copy of the photo, as the detector's
+         * proxy faces are mapped.
+         *
+         * @param width  The width of the copy.
+         * @param height The height of the copy.
+         */
+        List<DetectedFace> facesAt(int width, int height) {
+            float scaleX = (float) width / this.width;
+            float scaleY = (float) height / this.height;
+            List<DetectedFace> scaled = new ArrayList<>(faces.size());
+            for (DetectedFace face : faces) {
+                scaled.add(face.scale(scaleX, scaleY));
+            }
+            return scaled;
+        }
+
+        /**
+         * Paints the photo: smooth gradients, a little sensor noise, and a skin toned oval
+         * behind every face so the golden images show where the emojis belong.
+         *
+         * @return The opaque ARGB pixels, row by row.
+         */
+        int[] photo() {
+            Random random = new Random(name.hashCode());
+            int[] pixels = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int noise = random.nextInt(16) - 8;
+                    int r = clamp(x * 200 / width + 30 + noise);
+                    int g = clamp(y * 180 / height + 40 + noise);
+                    int b = clamp(160 - x * 80 / width + noise);
+                    pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+            for (DetectedFace face : faces) {
+                paintOval(pixels, face);
+            }
+            return pixels;
+        }
+
+        private void paintOval(int[] pixels, DetectedFace face) {
+            float centerX = face.left + face.width / 2;
+            float centerY = face.top + face.height / 2;
+            float radiusX = face.width / 2;
+            float radiusY = face.height / 2;
+            int top = Math.max(0, (int) face.top);
+            int bottom = Math.min(height, (int) (face.top + face.height));
+            int left = Math.max(0, (int) face.left);
+            int right = Math.min(width, (int) (face.left + face.width));
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    float dx = (x - centerX) / radiusX;
+                    float dy = (y - centerY) / radiusY;
+                    if (dx * dx + dy * dy <= 1f) {
+                        pixels[y * width + x] = 0xFFE0AC8A;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + width + "x" + height + ", " + faces.size() + " faces)";
+        }
+    }
+
+    /**
+     * Reads the corpus.
+     *
+     * @return The cases, in the order of the file.
+     */
+    static List<Case> load() throws IOException {
+        InputStream in = PerfCorpus.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            throw new IOException(RESOURCE + " is missing from the classpath");
+        }
+        List<Case> cases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            Case current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields[0].equals("case") && fields.length == 4) {
+                    current = new Case(fields[1], Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]));
+                    cases.add(current);
+                } else if (fields[0].equals("face") && fields.length == 8 && current != null) {
+                    current.faces.add(new DetectedFace(current.faces.size(),
+                            Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+                            Float.parseFloat(fields[3]), Float.parseFloat(fields[4]),
+                            Float.parseFloat(fields[5]), Float.parseFloat(fields[6]),
+                            Float.parseFloat(fields[7])));
+                } else {
+                    throw new IOException("Malformed corpus line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return Collections.unmodifiableList(cases);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
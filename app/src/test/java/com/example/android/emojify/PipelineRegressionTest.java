@@ -0,0 +1,493 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.example.android.emojify.raster.ArgbBlend;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the {@link PerfCorpus} through the app's own pipeline and fails when the output
+ * drifts from the golden images, or a stage gets slower, allocates more or needs more heap
+ * than the checked in baseline allows.
+ *
+ * Each photo goes through {@link BitmapUtils#resamplePic(String, int, int, Bitmap.Config)},
+ * {@link Emojifier#classify(List, EmojiClassifier)},
+ * {@link Emojifier#overlayEmoji(EmojiAtlas, Bitmap, List, List, float, boolean)} and
+ * {@link ImageEncoder#encodeNow}, drawn by Robolectric's native graphics, which is Skia as
+ * on a device. Only the face detector is replaced, by the faces recorded in the corpus.
+ * {@link StageProbe} measures each stage.
+ *
+ * The goldens and {@code perf-baseline.properties} are checked in next to the corpus.
+ * Allocations and peak heap are kept in KB. Latency depends on the machine, so it is kept
+ * as a multiple of a calibration workload timed at the start of the run, and compared
+ * with the baseline times the calibration of this run. The file also holds how much each
+ * metric may grow, in {@code threshold.time}, {@code threshold.allocatedKb} and
+ * {@code threshold.peakHeapKb}. These system properties, forwarded by Gradle from
+ * {@code -P} options of the same name, tune the suite:
+ * <ul>
+ * <li>{@code perf.threshold}: how much any metric may grow, instead of the thresholds in
+ * the baseline, 0.5 for 50%.</li>
+ * <li>{@code perf.iterations}: the measured runs per case. The fastest is compared for
+ * latency, the median for memory.</li>
+ * <li>{@code perf.update}: true to store the current output and costs as the new goldens
+ * and baseline instead of comparing, after an intended change.</li>
+ * </ul>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30, manifest = Config.NONE)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class PipelineRegressionTest {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    // Channel difference and share of pixels tolerated against the goldens
+    private static final int GOLDEN_TOLERANCE = 8;
+    private static final float GOLDEN_MAX_DIFFERENT_FRACTION = 0.002f;
+
+    // How much each metric may grow when the baseline does not say. Memory is steady from
+    // run to run, while on a busy or single core machine a stage can take twice as long
+    private static final Map<String, Double> DEFAULT_THRESHOLDS = new TreeMap<>();
+
+    // Differences this small are noise, whatever the threshold
+    private static final Map<String, Double> SLACK = new TreeMap<>();
+
+    private static final String TIME = "time";
+    private static final String ALLOCATED_KB = "allocatedKb";
+    private static final String PEAK_HEAP_KB = "peakHeapKb";
+
+    static {
+        DEFAULT_THRESHOLDS.put(TIME, 1.0);
+        DEFAULT_THRESHOLDS.put(ALLOCATED_KB, 0.2);
+        DEFAULT_THRESHOLDS.put(PEAK_HEAP_KB, 0.3);
+        // In milliseconds for the time, which the baseline keeps in calibrations
+        SLACK.put(TIME, 5.0);
+        SLACK.put(ALLOCATED_KB, 256.0);
+        SLACK.put(PEAK_HEAP_KB, 1024.0);
+    }
+
+    // The calibration workload, a JPEG encode and an ARGB blend of a noisy square
+    private static final int CALIBRATION_SIZE = 512;
+    private static final int CALIBRATION_WARMUP_RUNS = 10;
+    private static final int CALIBRATION_RUNS = 15;
+
+    // The preview budget of the NORMAL memory tier
+    private static final MemoryBudget BUDGET = new MemoryBudget(128, false);
+
+    private static final String BASELINE_FILE = "perf-baseline.properties";
+    private static final String THRESHOLD_PREFIX = "threshold.";
+    private static final String GOLDEN_DIRECTORY = "golden";
+
+    private static final EmojifyMetrics.Stage[] STAGES = {
+            EmojifyMetrics.Stage.DECODE,
+            EmojifyMetrics.Stage.CLASSIFY,
+            EmojifyMetrics.Stage.COMPOSITE,
+            EmojifyMetrics.Stage.ENCODE
+    };
+
+    private static File sResources;
+    private static File sReports;
+    private static boolean sUpdate;
+
+    // The corpus runs once for both tests
+    private static Map<String, Bitmap> sThumbnails;
+    private static double sCalibrationMillis;
+    private static final Map<String, Double> sMillis = new TreeMap<>();
+    private static final Map<String, Double> sAllocatedKb = new TreeMap<>();
+    private static final Map<String, Double> sPeakHeapKb = new TreeMap<>();
+
+    private static synchronized void runCorpus() throws Exception {
+        if (sThumbnails != null) {
+            return;
+        }
+        sResources = new File(System.getProperty("perf.resources", "src/test/resources"));
+        sReports = new File(System.getProperty("perf.reports", "build/reports/perf"));
+        sUpdate = Boolean.parseBoolean(System.getProperty("perf.update", "false"));
+        int iterations = Integer.parseInt(System.getProperty("perf.iterations",
+                String.valueOf(DEFAULT_ITERATIONS)));
+
+        File work = new File(sReports, "work");
+        if (!work.exists() && !work.mkdirs()) {
+            throw new IOException("Could not create " + work);
+        }
+        EmojiAtlas atlas = TestAtlas.load();
+        double calibrationBefore = calibrate();
+        StageProbe probe = new StageProbe();
+
+        Map<String, Bitmap> thumbnails = new LinkedHashMap<>();
+        for (PerfCorpus.Case photo : PerfCorpus.load()) {
+            File jpeg = capture(photo, new File(work, photo.name + ".jpg"));
+            File output = new File(work, photo.name + "_emojified"
+                    + ImageEncoder.extensionOf(ImageEncoder.DEFAULT_FORMAT));
+
+            // Per stage, the samples of the measured runs
+            StageProbe.Sample[][] samples = new StageProbe.Sample[STAGES.length][iterations];
+            for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+                StageProbe.Sample[] run = run(photo, jpeg, output, atlas, probe);
+                if (i >= 0) {
+                    for (int s = 0; s < STAGES.length; s++) {
+                        samples[s][i] = run[s];
+                    }
+                }
+            }
+            for (int s = 0; s < STAGES.length; s++) {
+                String key = photo.name + "." + STAGES[s];
+                long[] nanos = new long[iterations];
+                long[] allocated = new long[iterations];
+                long[] peakHeap = new long[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    nanos[i] = samples[s][i].nanos;
+                    allocated[i] = samples[s][i].allocatedBytes;
+                    peakHeap[i] = samples[s][i].peakHeapBytes;
+                }
+                // Noise only ever slows a run down, so the fastest one is the steadiest
+                sMillis.put(key, min(nanos) / 1e6);
+                sAllocatedKb.put(key, median(allocated) / 1024.0);
+                sPeakHeapKb.put(key, median(peakHeap) / 1024.0);
+            }
+
+            // The golden is taken from the saved file, after the encoder had its say
+            Bitmap saved = BitmapFactory.decodeFile(output.getPath());
+            thumbnails.put(photo.name, GoldenImage.thumbnail(saved));
+            System.out.println(photo + ": " + saved.getWidth() + "x" + saved.getHeight()
+                    + " preview, " + output.length() + " bytes encoded");
+            saved.recycle();
+            jpeg.delete();
+            output.delete();
+        }
+        sThumbnails = thumbnails;
+
+        // The machine may have been busier or the JIT warmer towards one end of the run
+        sCalibrationMillis = (calibrationBefore + calibrate()) / 2;
+
+        writeReport(new File(sReports, "pipeline.csv"));
+        if (sUpdate) {
+            for (Map.Entry<String, Bitmap> entry : sThumbnails.entrySet()) {
+                GoldenImage.write(entry.getValue(), goldenFile(entry.getKey()));
+            }
+            writeBaseline(baselineFile());
+        }
+    }
+
+    /**
+     * Runs a captured photo through every stage.
+     *
+     * @return What each stage cost, in the order of {@link #STAGES}.
+     */
+    private static StageProbe.Sample[] run(PerfCorpus.Case photo, File jpeg, File output,
+            EmojiAtlas atlas, StageProbe probe) throws IOException {
+        StageProbe.Sample[] samples = new StageProbe.Sample[STAGES.length];
+
+        probe.begin();
+        int[] target = BUDGET.fitPreview(photo.width, photo.height);
+        Bitmap picture = BitmapUtils.resamplePic(jpeg.getPath(), target[0], target[1],
+                BUDGET.previewConfig());
+        samples[0] = probe.end();
+        if (picture == null) {
+            throw new IOException("Could not decode " + jpeg);
+        }
+
+        List<DetectedFace> faces = photo.facesAt(picture.getWidth(), picture.getHeight());
+
+        probe.begin();
+        List<Emojifier.Emoji> emojis = Emojifier.classify(faces, EmojiClassifier.DEFAULT);
+        samples[1] = probe.end();
+
+        // The decoded picture is ours, so the emojis are drawn on it as the app does
+        probe.begin();
+        Bitmap result = Emojifier.overlayEmoji(atlas, picture, faces, emojis,
+                Emojifier.EMOJI_SCALE_FACTOR, true);
+        samples[2] = probe.end();
+
+        probe.begin();
+        ImageEncoder.encodeNow(result, output, ImageEncoder.DEFAULT_FORMAT,
+                ImageEncoder.DEFAULT_QUALITY);
+        samples[3] = probe.end();
+
+        if (result != picture) {
+            result.recycle();
+        }
+        picture.recycle();
+        return samples;
+    }
+
+    @Test
+    public void outputMatchesGoldenImages() throws Exception {
+        runCorpus();
+        if (sUpdate) {
+            return;
+        }
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Bitmap> entry : sThumbnails.entrySet()) {
+            Bitmap golden = GoldenImage.read(goldenFile(entry.getKey()));
+            if (golden == null) {
+                failures.add(entry.getKey() + ": no golden image");
+                continue;
+            }
+            GoldenImage.Diff diff = GoldenImage.compare(entry.getValue(), golden,
+                    GOLDEN_TOLERANCE);
+            if (diff.differentFraction() > GOLDEN_MAX_DIFFERENT_FRACTION) {
+                failures.add(entry.getKey() + ": " + diff);
+            }
+        }
+        assertNoFailures("Output differs from the golden images", failures);
+    }
+
+    @Test
+    public void stagesStayWithinBaseline() throws Exception {
+        runCorpus();
+        if (sUpdate) {
+            return;
+        }
+        File file = baselineFile();
+        if (!file.exists()) {
+            fail("No baseline at " + file + ", record one with -Pperf.update=true");
+        }
+        Properties baseline = readBaseline(file);
+
+        List<String> failures = new ArrayList<>();
+        for (String key : sMillis.keySet()) {
+            // The baseline keeps latency in calibrations, compared here in milliseconds
+            check(failures, baseline, key, TIME, sMillis.get(key), sCalibrationMillis);
+            if (StageProbe.countsAllocations()) {
+                check(failures, baseline, key, ALLOCATED_KB, sAllocatedKb.get(key), 1);
+            }
+            check(failures, baseline, key, PEAK_HEAP_KB, sPeakHeapKb.get(key), 1);
+        }
+        assertNoFailures(String.format(Locale.US, "Stages grew beyond the baseline"
+                + " (calibration %.1f ms)", sCalibrationMillis), failures);
+    }
+
+    /**
+     * Compares a metric of a stage with the baseline and notes a failure if it grew too
+     * much.
+     *
+     * @param unit What one unit of the baseline value is worth in the measured unit.
+     */
+    private static void check(List<String> failures, Properties baseline, String key,
+            String metric, double actual, double unit) {
+        String expected = baseline.getProperty(key + "." + metric);
+        if (expected == null) {
+            failures.add(key + "." + metric + ": not in the baseline");
+            return;
+        }
+        double limit = Double.parseDouble(expected) * unit * (1 + threshold(baseline, metric))
+                + SLACK.get(metric);
+        if (actual > limit) {
+            failures.add(String.format(Locale.US, "%s.%s: %.1f, baseline %.1f, limit %.1f",
+                    key, metric, actual, Double.parseDouble(expected) * unit, limit));
+        }
+    }
+
+    private static double threshold(Properties baseline, String metric) {
+        String override = System.getProperty("perf.threshold");
+        if (override != null) {
+            return Double.parseDouble(override);
+        }
+        String threshold = baseline.getProperty(THRESHOLD_PREFIX + metric);
+        return threshold != null ? Double.parseDouble(threshold) : DEFAULT_THRESHOLDS.get(metric);
+    }
+
+    /**
+     * Times a fixed workload of native JPEG encoding and Java pixel blending, the two kinds
+     * of work the pipeline does, so latency can be compared across machines.
+     *
+     * @return The milliseconds of the fastest run.
+     */
+    private static double calibrate() throws IOException {
+        Random random = new Random(CALIBRATION_SIZE);
+        int[] pixels = new int[CALIBRATION_SIZE * CALIBRATION_SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, CALIBRATION_SIZE, CALIBRATION_SIZE,
+                Bitmap.Config.ARGB_8888);
+        int[] destination = new int[pixels.length];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] nanos = new long[CALIBRATION_RUNS];
+        for (int i = -CALIBRATION_WARMUP_RUNS; i < CALIBRATION_RUNS; i++) {
+            long start = System.nanoTime();
+            out.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, ImageEncoder.DEFAULT_QUALITY, out);
+            Arrays.fill(destination, 0xFF808080);
+            ArgbBlend.blendOver(destination, CALIBRATION_SIZE, CALIBRATION_SIZE, pixels,
+                    CALIBRATION_SIZE, CALIBRATION_SIZE, 0, 0);
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        bitmap.recycle();
+        return min(nanos) / 1e6;
+    }
+
+    /**
+     * Encodes the photo of a case as the camera would, a JPEG.
+     */
+    private static File capture(PerfCorpus.Case photo, File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(photo.photo(), photo.width, photo.height,
+                Bitmap.Config.ARGB_8888);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out)) {
+                throw new IOException("Could not encode " + file);
+            }
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private static void assertNoFailures(String message, List<String> failures) {
+        if (!failures.isEmpty()) {
+            StringBuilder builder = new StringBuilder(message).append(':');
+            for (String failure : failures) {
+                builder.append("\n  ").append(failure);
+            }
+            builder.append("\nIf the change is intended, record it with -Pperf.update=true");
+            fail(builder.toString());
+        }
+    }
+
+    private static File goldenFile(String caseName) {
+        return new File(new File(sResources, GOLDEN_DIRECTORY), caseName + ".png");
+    }
+
+    private static File baselineFile() {
+        return new File(sResources, BASELINE_FILE);
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static Properties readBaseline(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Writes every measurement of this run as a CSV file.
+     */
+    private static void writeReport(File file) throws IOException {
+        PrintWriter writer = openWriter(file);
+        try {
+            writer.println("stage,millis,allocatedKb,peakHeapKb");
+            writer.println(String.format(Locale.US, "calibration,%.2f,,", sCalibrationMillis));
+            for (String key : sMillis.keySet()) {
+                writer.println(String.format(Locale.US, "%s,%.2f,%.0f,%.0f", key,
+                        sMillis.get(key), sAllocatedKb.get(key), sPeakHeapKb.get(key)));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the measurements of this run as the new baseline, keeping the thresholds of the
+     * current one.
+     */
+    private static void writeBaseline(File file) throws IOException {
+        Map<String, String> thresholds = new TreeMap<>();
+        for (String metric : DEFAULT_THRESHOLDS.keySet()) {
+            thresholds.put(THRESHOLD_PREFIX + metric,
+                    String.valueOf(DEFAULT_THRESHOLDS.get(metric)));
+        }
+        if (file.exists()) {
+            Properties current = readBaseline(file);
+            for (String name : current.stringPropertyNames()) {
+                if (name.startsWith(THRESHOLD_PREFIX)) {
+                    thresholds.put(name, current.getProperty(name));
+                }
+            }
+        }
+
+        PrintWriter writer = openWriter(file);
+        try {
+            writer.println("# The cost of each pipeline stage, recorded by PipelineRegressionTest"
+                    + " with -Pperf.update=true");
+            writer.println("# time is in multiples of the calibration workload, which took"
+                    + String.format(Locale.US, " %.1f ms when recorded", sCalibrationMillis));
+            writer.println("# threshold.<metric> is how much a metric may grow, 0.5 for 50%");
+            for (Map.Entry<String, String> entry : thresholds.entrySet()) {
+                writer.println(entry.getKey() + "=" + entry.getValue());
+            }
+            for (String key : sMillis.keySet()) {
+                writer.println(String.format(Locale.US, "%s.%s=%.3f", key, TIME,
+                        sMillis.get(key) / sCalibrationMillis));
+                writer.println(String.format(Locale.US, "%s.%s=%.0f", key, ALLOCATED_KB,
+                        sAllocatedKb.get(key)));
+                writer.println(String.format(Locale.US, "%s.%s=%.0f", key, PEAK_HEAP_KB,
+                        sPeakHeapKb.get(key)));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static PrintWriter openWriter(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new PrintWriter(file, "UTF-8");
+    }
+}
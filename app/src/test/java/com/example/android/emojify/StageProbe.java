@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the latency, allocations and peak heap of one stage of the pipeline on the host
+ * JVM.
+ *
+ * Allocations are summed over every thread, so the compositor bands count too. The peak
+ * heap is the high-water mark of the heap pools during the stage, above what was in use
+ * when it began. Bitmap pixels live in native memory, on the host as on recent devices,
+ * so both cover the Java side: pixel buffers, sprites and the garbage a stage leaves.
+ */
+final class StageProbe {
+
+    /**
+     * What one run of a stage cost.
+     */
+    static final class Sample {
+
+        final long nanos;
+        final long allocatedBytes;
+        final long peakHeapBytes;
+
+        Sample(long nanos, long allocatedBytes, long peakHeapBytes) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<MemoryPoolMXBean> mHeapPools = new ArrayList<>();
+    private final Map<Long, Long> mAllocatedAtStart = new HashMap<>();
+    private long mUsedAtStart;
+    private long mStartNanos;
+
+    StageProbe() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                mHeapPools.add(pool);
+            }
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * @return True if the JVM counts the bytes each thread allocates.
+     */
+    static boolean countsAllocations() {
+        return THREADS.isThreadAllocatedMemorySupported();
+    }
+
+    void begin() {
+        mAllocatedAtStart.clear();
+        long[] ids = THREADS.getAllThreadIds();
+        long[] allocated = THREADS.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            mAllocatedAtStart.put(ids[i], allocated[i]);
+        }
+        mUsedAtStart = 0;
+        for (MemoryPoolMXBean pool : mHeapPools) {
+            pool.resetPeakUsage();
+            mUsedAtStart += pool.getUsage().getUsed();
+        }
+        mStartNanos = System.nanoTime();
+    }
+
+    Sample end() {
+        long nanos = System.nanoTime() - mStartNanos;
+
+        // Threads started during the stage count from zero, threads that ended are lost
+        long allocatedBytes = 0;
+        long[] ids = THREADS.getAllThreadIds();
+        long[] allocated = THREADS.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] < 0) {
+                continue;
+            }
+            Long start = mAllocatedAtStart.get(ids[i]);
+            allocatedBytes += allocated[i] - (start != null ? start : 0);
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : mHeapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return new Sample(nanos, allocatedBytes, Math.max(0, peak - mUsedAtStart));
+    }
+}
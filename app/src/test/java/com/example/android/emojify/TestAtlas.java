@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Builds the {@link EmojiAtlas} of the app from the drawable files, for Robolectric tests
+ * that run without the merged app resources.
+ *
+ * The directory is the {@code emojify.drawables} system property, by default the app's
+ * {@code src/main/res/drawable}, relative to the module directory Gradle runs tests in.
+ */
+final class TestAtlas {
+
+    private static final Map<Emojifier.Emoji, String> FILES =
+            new EnumMap<>(Emojifier.Emoji.class);
+
+    static {
+        FILES.put(Emojifier.Emoji.SMILE, "smile.png");
+        FILES.put(Emojifier.Emoji.FROWN, "frown.png");
+        FILES.put(Emojifier.Emoji.LEFT_WINK, "leftwink.png");
+        FILES.put(Emojifier.Emoji.RIGHT_WINK, "rightwink.png");
+        FILES.put(Emojifier.Emoji.LEFT_WINK_FROWN, "leftwinkfrown.png");
+        FILES.put(Emojifier.Emoji.RIGHT_WINK_FROWN, "rightwinkfrown.png");
+        FILES.put(Emojifier.Emoji.CLOSED_EYE_SMILE, "closed_smile.png");
+        FILES.put(Emojifier.Emoji.CLOSED_EYE_FROWN, "closed_frown.png");
+    }
+
+    private TestAtlas() {
+    }
+
+    /**
+     * Decodes the drawables at their pixel size and builds an atlas from them.
+     */
+    static EmojiAtlas load() throws IOException {
+        File directory = new File(System.getProperty("emojify.drawables",
+                "src/main/res/drawable"));
+        Emojifier.Emoji[] emojis = Emojifier.Emoji.values();
+        Bitmap[] drawables = new Bitmap[emojis.length];
+        for (Emojifier.Emoji emoji : emojis) {
+            File file = new File(directory, FILES.get(emoji));
+            drawables[emoji.ordinal()] = BitmapFactory.decodeFile(file.getPath());
+            if (drawables[emoji.ordinal()] == null) {
+                throw new IOException("Could not decode " + file);
+            }
+        }
+        return new EmojiAtlas(drawables);
+    }
+}
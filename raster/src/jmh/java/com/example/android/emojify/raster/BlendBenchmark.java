@@ -0,0 +1,65 @@
+package com.example.android.emojify.raster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blend throughput: one emoji per face over photos of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlendBenchmark {
+
+    @Param({"640x480", "1920x1080", "4032x3024"})
+    public String imageSize;
+
+    @Param({"1", "8", "32"})
+    public int faceCount;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mBackground;
+    private int[] mPixels;
+    private Fixtures.Face[] mFaces;
+    private int[][] mSprites;
+
+    @Setup
+    public void setUp() {
+        String[] size = imageSize.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mBackground = Fixtures.photo(mWidth, mHeight);
+        mPixels = new int[mBackground.length];
+        mFaces = Fixtures.faceGrid(mWidth, mHeight, faceCount);
+
+        mSprites = new int[faceCount][];
+        int[] sprite = Fixtures.sprite(Fixtures.SPRITE_SIZE);
+        for (int i = 0; i < faceCount; i++) {
+            int width = EmojiPlacement.emojiWidth(mFaces[i].width, 1f);
+            mSprites[i] = ArgbScaler.scaleBilinear(sprite, Fixtures.SPRITE_SIZE,
+                    Fixtures.SPRITE_SIZE, width, width);
+        }
+    }
+
+    @Benchmark
+    public int[] blendAllFaces() {
+        System.arraycopy(mBackground, 0, mPixels, 0, mPixels.length);
+        for (int i = 0; i < faceCount; i++) {
+            Fixtures.Face face = mFaces[i];
+            int size = (int) Math.sqrt(mSprites[i].length);
+            int x = Math.round(EmojiPlacement.left(face.left, face.width, size));
+            int y = Math.round(EmojiPlacement.top(face.top, face.height, size));
+            ArgbBlend.blendOver(mPixels, mWidth, mHeight, mSprites[i], size, size, x, y);
+        }
+        return mPixels;
+    }
+}
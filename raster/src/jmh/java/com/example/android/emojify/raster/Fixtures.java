@@ -0,0 +1,82 @@
+package com.example.android.emojify.raster;
+
+import java.util.Random;
+
+/**
+ * Deterministic inputs shared by the benchmarks.
+ */
+final class Fixtures {
+
+    // The emoji drawables are 240x240
+    static final int SPRITE_SIZE = 240;
+
+    private Fixtures() {
+    }
+
+    /**
+     * A face rectangle in photo coordinates.
+     */
+    static final class Face {
+
+        final float left;
+        final float top;
+        final float width;
+        final float height;
+
+        Face(float left, float top, float width, float height) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * An opaque photo with smooth gradients and some noise.
+     */
+    static int[] photo(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = random.nextInt(256);
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A round sprite with a soft, partly transparent edge, like the emoji drawables.
+     */
+    static int[] sprite(int size) {
+        int[] pixels = new int[size * size];
+        float center = size / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float distance = (float) Math.hypot(x + 0.5f - center, y + 0.5f - center);
+                float alpha = Math.max(0f, Math.min(1f, center - distance));
+                pixels[y * size + x] = ((int) (alpha * 255) << 24) | 0xFFC83D;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Square faces laid out on a grid that covers the photo.
+     */
+    static Face[] faceGrid(int width, int height, int count) {
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        int rows = (count + columns - 1) / columns;
+        float size = Math.min(width / (float) columns, height / (float) rows) * 0.8f;
+        Face[] faces = new Face[count];
+        for (int i = 0; i < count; i++) {
+            float left = (i % columns) * width / (float) columns;
+            float top = (i / columns) * height / (float) rows;
+            faces[i] = new Face(left, top, size, size);
+        }
+        return faces;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.emojify.raster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Placement math for every face of a photo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlacementBenchmark {
+
+    @Param({"1", "8", "32", "128"})
+    public int faceCount;
+
+    private Fixtures.Face[] mFaces;
+
+    @Setup
+    public void setUp() {
+        mFaces = Fixtures.faceGrid(4032, 3024, faceCount);
+    }
+
+    @Benchmark
+    public float placeAllFaces() {
+        float checksum = 0;
+        for (Fixtures.Face face : mFaces) {
+            int width = EmojiPlacement.emojiWidth(face.width, 1f);
+            int height = EmojiPlacement.emojiHeight(width, Fixtures.SPRITE_SIZE,
+                    Fixtures.SPRITE_SIZE);
+            checksum += EmojiPlacement.left(face.left, face.width, width);
+            checksum += EmojiPlacement.top(face.top, face.height, height);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.android.emojify.raster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sprite scaling cost for the face widths seen in selfies and crowd shots.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScaleBenchmark {
+
+    @Param({"48", "160", "720"})
+    public int targetWidth;
+
+    private int[] mSprite;
+
+    @Setup
+    public void setUp() {
+        mSprite = Fixtures.sprite(Fixtures.SPRITE_SIZE);
+    }
+
+    @Benchmark
+    public int[] nearest() {
+        return ArgbScaler.scaleNearest(mSprite, Fixtures.SPRITE_SIZE, Fixtures.SPRITE_SIZE,
+                targetWidth, targetWidth);
+    }
+
+    @Benchmark
+    public int[] bilinear() {
+        return ArgbScaler.scaleBilinear(mSprite, Fixtures.SPRITE_SIZE, Fixtures.SPRITE_SIZE,
+                targetWidth, targetWidth);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify.raster;
+
+/**
+ * Source-over alpha blending of ARGB_8888 pixel buffers.
+ *
+ * Buffers hold one non-premultiplied 0xAARRGGBB int per pixel in row-major order, the
+ * layout returned by {@code Bitmap.getPixels}.
+ */
+public final class ArgbBlend {
+
+    private ArgbBlend() {
+    }
+
+    /**
+     * Blends a sprite over a destination buffer. Pixels that fall outside the destination
+     * are skipped.
+     *
+     * @param dst       The destination pixels, modified in place.
+     * @param dstWidth  The width of the destination.
+     * @param dstHeight The height of the destination.
+     * @param src       The sprite pixels.
+     * @param srcWidth  The width of the sprite.
+     * @param srcHeight The height of the sprite.
+     * @param x         The destination column of the sprite's left edge.
+     * @param y         The destination row of the sprite's top edge.
+     */
+    public static void blendOver(int[] dst, int dstWidth, int dstHeight,
+            int[] src, int srcWidth, int srcHeight, int x, int y) {
+        blendOver(dst, dstWidth, dstHeight, src, srcWidth, srcHeight, x, y, 0, dstHeight);
+    }
+
+    /**
+     * Blends a sprite over the rows {@code [clipTop, clipBottom)} of a destination buffer.
+     * Blending disjoint row ranges from different threads is safe and gives the same pixels
+     * as one full blend.
+     *
+     * @see #blendOver(int[], int, int, int[], int, int, int, int)
+     */
+    public static void blendOver(int[] dst, int dstWidth, int dstHeight,
+            int[] src, int srcWidth, int srcHeight, int x, int y, int clipTop, int clipBottom) {
+        int startRow = Math.max(Math.max(y, clipTop), 0);
+        int endRow = Math.min(Math.min(y + srcHeight, clipBottom), dstHeight);
+        int startColumn = Math.max(x, 0);
+        int endColumn = Math.min(x + srcWidth, dstWidth);
+        if (startRow >= endRow || startColumn >= endColumn) {
+            return;
+        }
+
+        for (int row = startRow; row < endRow; row++) {
+            int srcIndex = (row - y) * srcWidth + (startColumn - x);
+            int dstIndex = row * dstWidth + startColumn;
+            for (int column = startColumn; column < endColumn; column++) {
+                dst[dstIndex] = blendPixel(src[srcIndex], dst[dstIndex]);
+                srcIndex++;
+                dstIndex++;
+            }
+        }
+    }
+
+    /**
+     * Blends one non-premultiplied source pixel over a destination pixel.
+     *
+     * @param src The source pixel.
+     * @param dst The destination pixel.
+     * @return The blended pixel.
+     */
+    public static int blendPixel(int src, int dst) {
+        int srcAlpha = src >>> 24;
+        if (srcAlpha == 0xFF) {
+            return src;
+        }
+        if (srcAlpha == 0) {
+            return dst;
+        }
+
+        int inverse = 0xFF - srcAlpha;
+        int dstAlpha = dst >>> 24;
+
+        if (dstAlpha == 0xFF) {
+            // Opaque photos are the common case: out = src * a + dst * (1 - a)
+            int r = div255(((src >> 16) & 0xFF) * srcAlpha + ((dst >> 16) & 0xFF) * inverse);
+            int g = div255(((src >> 8) & 0xFF) * srcAlpha + ((dst >> 8) & 0xFF) * inverse);
+            int b = div255((src & 0xFF) * srcAlpha + (dst & 0xFF) * inverse);
+            return 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+
+        // General case, weights are scaled by 255 to stay in integer math
+        int dstWeight = dstAlpha * inverse;
+        int outAlpha255 = srcAlpha * 0xFF + dstWeight;
+        if (outAlpha255 == 0) {
+            return 0;
+        }
+        int half = outAlpha255 / 2;
+        int r = (((src >> 16) & 0xFF) * srcAlpha * 0xFF + ((dst >> 16) & 0xFF) * dstWeight
+                + half) / outAlpha255;
+        int g = (((src >> 8) & 0xFF) * srcAlpha * 0xFF + ((dst >> 8) & 0xFF) * dstWeight
+                + half) / outAlpha255;
+        int b = ((src & 0xFF) * srcAlpha * 0xFF + (dst & 0xFF) * dstWeight + half)
+                / outAlpha255;
+        int a = div255(outAlpha255);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Divides a value in [0, 255 * 255] by 255, rounded to nearest.
+     */
+    static int div255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+}
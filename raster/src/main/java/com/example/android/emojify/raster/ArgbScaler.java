@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify.raster;
+
+/**
+ * Resizes ARGB_8888 pixel buffers.
+ */
+public final class ArgbScaler {
+
+    private ArgbScaler() {
+    }
+
+    /**
+     * Scales with nearest neighbor sampling. Fast but aliased when shrinking.
+     *
+     * @param src       The source pixels.
+     * @param srcWidth  The width of the source.
+     * @param srcHeight The height of the source.
+     * @param dstWidth  The width of the result.
+     * @param dstHeight The height of the result.
+     * @return The scaled pixels.
+     */
+    public static int[] scaleNearest(int[] src, int srcWidth, int srcHeight,
+            int dstWidth, int dstHeight) {
+        int[] dst = new int[dstWidth * dstHeight];
+        // 16.16 fixed point steps through the source
+        int stepX = (int) (((long) srcWidth << 16) / dstWidth);
+        int stepY = (int) (((long) srcHeight << 16) / dstHeight);
+
+        int dstIndex = 0;
+        int sourceY = stepY >> 1;
+        for (int row = 0; row < dstHeight; row++) {
+            int srcRow = (sourceY >> 16) * srcWidth;
+            int sourceX = stepX >> 1;
+            for (int column = 0; column < dstWidth; column++) {
+                dst[dstIndex++] = src[srcRow + (sourceX >> 16)];
+                sourceX += stepX;
+            }
+            sourceY += stepY;
+        }
+        return dst;
+    }
+
+    /**
+     * Scales with bilinear filtering of all four channels.
+     *
+     * @see #scaleNearest(int[], int, int, int, int)
+     */
+    public static int[] scaleBilinear(int[] src, int srcWidth, int srcHeight,
+            int dstWidth, int dstHeight) {
+        int[] dst = new int[dstWidth * dstHeight];
+        float ratioX = (float) srcWidth / dstWidth;
+        float ratioY = (float) srcHeight / dstHeight;
+
+        int dstIndex = 0;
+        for (int row = 0; row < dstHeight; row++) {
+            float sourceY = Math.max(0f, (row + 0.5f) * ratioY - 0.5f);
+            int y0 = Math.min((int) sourceY, srcHeight - 1);
+            int y1 = Math.min(y0 + 1, srcHeight - 1);
+            int weightY = (int) ((sourceY - y0) * 256);
+
+            for (int column = 0; column < dstWidth; column++) {
+                float sourceX = Math.max(0f, (column + 0.5f) * ratioX - 0.5f);
+                int x0 = Math.min((int) sourceX, srcWidth - 1);
+                int x1 = Math.min(x0 + 1, srcWidth - 1);
+                int weightX = (int) ((sourceX - x0) * 256);
+
+                int top = lerp(src[y0 * srcWidth + x0], src[y0 * srcWidth + x1], weightX);
+                int bottom = lerp(src[y1 * srcWidth + x0], src[y1 * srcWidth + x1], weightX);
+                dst[dstIndex++] = lerp(top, bottom, weightY);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Interpolates each channel between two pixels, with a weight in [0, 256].
+     */
+    private static int lerp(int a, int b, int weight) {
+        if (a == b || weight == 0) {
+            return a;
+        }
+        int inverse = 256 - weight;
+        int alpha = (((a >>> 24) * inverse + (b >>> 24) * weight) >> 8) & 0xFF;
+        int red = ((((a >> 16) & 0xFF) * inverse + ((b >> 16) & 0xFF) * weight) >> 8) & 0xFF;
+        int green = ((((a >> 8) & 0xFF) * inverse + ((b >> 8) & 0xFF) * weight) >> 8) & 0xFF;
+        int blue = (((a & 0xFF) * inverse + (b & 0xFF) * weight) >> 8) & 0xFF;
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+}
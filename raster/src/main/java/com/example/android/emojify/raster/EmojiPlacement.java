@@ -0,0 +1,72 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify.raster;
+
+/**
+ * Where and how large an emoji is drawn over a face.
+ *
+ * The emoji matches the width of the face, keeps its aspect ratio, is centered horizontally
+ * and is raised by a third of its height so it best lines up with the face.
+ */
+public final class EmojiPlacement {
+
+    private EmojiPlacement() {
+    }
+
+    /**
+     * Returns the width of the emoji for a face.
+     *
+     * @param faceWidth   The width of the face.
+     * @param scaleFactor How much wider than the face the emoji is.
+     */
+    public static int emojiWidth(float faceWidth, float scaleFactor) {
+        return Math.max(1, (int) (faceWidth * scaleFactor));
+    }
+
+    /**
+     * Returns the height of an emoji scaled to a width, preserving the sprite's aspect ratio.
+     *
+     * @param emojiWidth   The scaled width.
+     * @param spriteWidth  The width of the unscaled sprite.
+     * @param spriteHeight The height of the unscaled sprite.
+     */
+    public static int emojiHeight(int emojiWidth, int spriteWidth, int spriteHeight) {
+        return Math.max(1, (int) ((long) spriteHeight * emojiWidth / spriteWidth));
+    }
+
+    /**
+     * Returns the left edge of the emoji.
+     *
+     * @param faceLeft   The left edge of the face.
+     * @param faceWidth  The width of the face.
+     * @param emojiWidth The width of the scaled emoji.
+     */
+    public static float left(float faceLeft, float faceWidth, int emojiWidth) {
+        return (faceLeft + faceWidth / 2) - emojiWidth / 2;
+    }
+
+    /**
+     * Returns the top edge of the emoji.
+     *
+     * @param faceTop     The top edge of the face.
+     * @param faceHeight  The height of the face.
+     * @param emojiHeight The height of the scaled emoji.
+     */
+    public static float top(float faceTop, float faceHeight, int emojiHeight) {
+        return (faceTop + faceHeight / 2) - emojiHeight / 3;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify.raster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes an opaque image as an 8 bit RGB PNG one row at a time.
+ *
+ * Only one row of pixels and one chunk of compressed output are held at once, so the memory
+ * needed does not depend on the height of the image. Each row uses the Sub filter, which is
+ * cheap and compresses photos noticeably better than no filter. Alpha is dropped.
+ *
+ * The compressor holds native memory until {@link #finish()}, so a writer that fails midway
+ * must be {@link #abort() aborted}.
+ */
+public final class StreamingPngWriter {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int FILTER_SUB = 1;
+
+    // Compressed data is written in IDAT chunks of at most this many bytes
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mHeader = new byte[8];
+
+    private int mChunkLength;
+    private int mRowsWritten;
+    private boolean mFinished;
+    private boolean mAborted;
+
+    /**
+     * Writes the PNG signature and header.
+     *
+     * @param out              The stream to write to, it is not closed by the writer.
+     * @param width            The width of the image.
+     * @param height           The height of the image.
+     * @param compressionLevel The {@link Deflater} level, 0 to 9.
+     */
+    public StreamingPngWriter(OutputStream out, int width, int height, int compressionLevel)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + width * BYTES_PER_PIXEL];
+
+        mOut.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;  // Bit depth
+        header[9] = 2;  // Color type: RGB
+        // Compression, filter and interlace methods are all 0
+        writeChunk(IHDR, header, header.length);
+
+        // Created last, so a failed header leaves no native memory behind
+        mDeflater = new Deflater(compressionLevel);
+    }
+
+    /**
+     * Compresses the next row.
+     *
+     * @param argb   The pixels, as 0xAARRGGBB ints.
+     * @param offset The index of the first pixel of the row.
+     */
+    public void writeRow(int[] argb, int offset) throws IOException {
+        if (mAborted) {
+            throw new IllegalStateException("The writer was aborted");
+        }
+        if (mRowsWritten == mHeight || mFinished) {
+            throw new IllegalStateException("All " + mHeight + " rows are already written");
+        }
+        byte[] row = mRow;
+        row[0] = FILTER_SUB;
+        int previous = 0;
+        for (int x = 0, i = 1; x < mWidth; x++, i += BYTES_PER_PIXEL) {
+            int pixel = argb[offset + x];
+            row[i] = (byte) ((pixel >> 16) - (previous >> 16));
+            row[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+            row[i + 2] = (byte) (pixel - previous);
+            previous = pixel;
+        }
+
+        mDeflater.setInput(row, 0, row.length);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+        mRowsWritten++;
+    }
+
+    /**
+     * Flushes the compressed data and writes the end of the image. The stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mAborted) {
+            throw new IllegalStateException("The writer was aborted");
+        }
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException("Only " + mRowsWritten + " of " + mHeight
+                    + " rows were written");
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        flushChunk();
+        mDeflater.end();
+        writeChunk(IEND, mChunk, 0);
+        mOut.flush();
+        mFinished = true;
+    }
+
+    /**
+     * Gives up on the image and frees the compressor. What was written so far is not a valid
+     * PNG, the caller deletes it. Does nothing once the image is finished, so it can be called
+     * from a finally block.
+     */
+    public void abort() {
+        if (mFinished || mAborted) {
+            return;
+        }
+        mAborted = true;
+        mDeflater.end();
+    }
+
+    /**
+     * @return The number of rows written so far.
+     */
+    public int getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    private void deflate() throws IOException {
+        int length = mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        mChunkLength += length;
+        if (mChunkLength == CHUNK_SIZE) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (mChunkLength > 0) {
+            writeChunk(IDAT, mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(byte[] type, byte[] data, int length) throws IOException {
+        putInt(mHeader, 0, length);
+        System.arraycopy(type, 0, mHeader, 4, 4);
+        mOut.write(mHeader, 0, 8);
+        mOut.write(data, 0, length);
+
+        mCrc.reset();
+        mCrc.update(type, 0, 4);
+        mCrc.update(data, 0, length);
+        putInt(mHeader, 0, (int) mCrc.getValue());
+        mOut.write(mHeader, 0, 4);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
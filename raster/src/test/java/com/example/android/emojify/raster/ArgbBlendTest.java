@@ -0,0 +1,79 @@
+package com.example.android.emojify.raster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link ArgbBlend}.
+ */
+public class ArgbBlendTest {
+
+    @Test
+    public void blendPixel_opaqueAndTransparentSources() throws Exception {
+        assertEquals(0xFF112233, ArgbBlend.blendPixel(0xFF112233, 0xFFAABBCC));
+        assertEquals(0xFFAABBCC, ArgbBlend.blendPixel(0x00112233, 0xFFAABBCC));
+    }
+
+    @Test
+    public void blendPixel_halfAlphaOverOpaque() throws Exception {
+        // 0x80 alpha mixes roughly half of white into black
+        assertEquals(0xFF808080, ArgbBlend.blendPixel(0x80FFFFFF, 0xFF000000));
+    }
+
+    @Test
+    public void blendPixel_overTransparentKeepsSourceColor() throws Exception {
+        assertEquals(0x80FF0000, ArgbBlend.blendPixel(0x80FF0000, 0x00000000));
+    }
+
+    @Test
+    public void blendOver_clipsSpritesOutsideTheDestination() throws Exception {
+        int[] dst = new int[4 * 4];
+        Arrays.fill(dst, 0xFF000000);
+        int[] sprite = new int[3 * 3];
+        Arrays.fill(sprite, 0xFFFFFFFF);
+
+        ArgbBlend.blendOver(dst, 4, 4, sprite, 3, 3, -2, 3);
+
+        int white = 0;
+        for (int pixel : dst) {
+            if (pixel == 0xFFFFFFFF) {
+                white++;
+            }
+        }
+        // Only the top-right pixel of the sprite lands on the bottom-left of the destination
+        assertEquals(1, white);
+        assertEquals(0xFFFFFFFF, dst[3 * 4]);
+    }
+
+    @Test
+    public void blendOver_bandsMatchFullBlend() throws Exception {
+        Random random = new Random(42);
+        int width = 37;
+        int height = 29;
+        int[] background = new int[width * height];
+        for (int i = 0; i < background.length; i++) {
+            background[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        int[] sprite = new int[11 * 13];
+        for (int i = 0; i < sprite.length; i++) {
+            sprite[i] = random.nextInt();
+        }
+
+        int[] full = background.clone();
+        ArgbBlend.blendOver(full, width, height, sprite, 11, 13, 5, 9);
+        ArgbBlend.blendOver(full, width, height, sprite, 11, 13, 9, 12);
+
+        int[] banded = background.clone();
+        for (int top = 0; top < height; top += 4) {
+            ArgbBlend.blendOver(banded, width, height, sprite, 11, 13, 5, 9, top, top + 4);
+            ArgbBlend.blendOver(banded, width, height, sprite, 11, 13, 9, 12, top, top + 4);
+        }
+
+        assertArrayEquals(full, banded);
+    }
+}
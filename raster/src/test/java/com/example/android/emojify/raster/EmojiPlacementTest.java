@@ -0,0 +1,28 @@
+package com.example.android.emojify.raster;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link EmojiPlacement}.
+ */
+public class EmojiPlacementTest {
+
+    @Test
+    public void emojiIsCenteredAndRaisedByAThird() throws Exception {
+        int width = EmojiPlacement.emojiWidth(200f, 1f);
+        int height = EmojiPlacement.emojiHeight(width, 240, 240);
+
+        assertEquals(200, width);
+        assertEquals(200, height);
+        assertEquals(100f, EmojiPlacement.left(100f, 200f, width), 0f);
+        assertEquals(134f, EmojiPlacement.top(100f, 200f, height), 0f);
+    }
+
+    @Test
+    public void emojiHeightKeepsAspectRatio() throws Exception {
+        assertEquals(50, EmojiPlacement.emojiHeight(100, 240, 120));
+        assertEquals(1, EmojiPlacement.emojiHeight(1, 240, 120));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify.raster;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes the output of {@link StreamingPngWriter} by hand and checks every pixel.
+ */
+public class StreamingPngWriterTest {
+
+    @Test
+    public void writesDecodablePixels() throws Exception {
+        // Tall enough to span several IDAT chunks
+        int width = 97;
+        int height = 700;
+        Random random = new Random(7);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(out, width, height, 1);
+        for (int y = 0; y < height; y++) {
+            writer.writeRow(pixels, y * width);
+        }
+        writer.finish();
+
+        assertArrayEquals(pixels, decode(out.toByteArray(), width, height));
+    }
+
+    @Test
+    public void finish_requiresEveryRow() throws Exception {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 2, 2, 6);
+        writer.writeRow(new int[2], 0);
+        try {
+            writer.finish();
+            fail("Finished with a missing row");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void abort_stopsTheWriterAndIsIgnoredOnceFinished() throws Exception {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 2, 2, 6);
+        writer.writeRow(new int[2], 0);
+        writer.abort();
+        writer.abort();
+        try {
+            writer.writeRow(new int[2], 0);
+            fail("Wrote a row after abort");
+        } catch (IllegalStateException expected) {
+        }
+
+        StreamingPngWriter finished = new StreamingPngWriter(new ByteArrayOutputStream(), 1, 1, 6);
+        finished.writeRow(new int[1], 0);
+        finished.finish();
+        finished.abort();
+        finished.finish();
+    }
+
+    /**
+     * Checks the chunk CRCs and header, then inflates and unfilters the pixels.
+     */
+    private static int[] decode(byte[] png, int width, int height) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        byte[] signature = new byte[8];
+        in.readFully(signature);
+        assertEquals((byte) 0x89, signature[0]);
+        assertEquals('P', signature[1]);
+
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[height * (1 + width * 3)];
+        int inflated = 0;
+        boolean ended = false;
+        while (!ended) {
+            int length = in.readInt();
+            byte[] typeAndData = new byte[4 + length];
+            in.readFully(typeAndData);
+            CRC32 crc = new CRC32();
+            crc.update(typeAndData);
+            assertEquals((int) crc.getValue(), in.readInt());
+
+            String type = new String(typeAndData, 0, 4, "US-ASCII");
+            if (type.equals("IHDR")) {
+                DataInputStream header = new DataInputStream(
+                        new ByteArrayInputStream(typeAndData, 4, length));
+                assertEquals(width, header.readInt());
+                assertEquals(height, header.readInt());
+            } else if (type.equals("IDAT")) {
+                inflater.setInput(typeAndData, 4, length);
+                inflated += inflater.inflate(raw, inflated, raw.length - inflated);
+            } else if (type.equals("IEND")) {
+                ended = true;
+            }
+        }
+        assertEquals(raw.length, inflated);
+
+        int[] pixels = new int[width * height];
+        int stride = 1 + width * 3;
+        for (int y = 0; y < height; y++) {
+            assertEquals(1, raw[y * stride]);
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int i = y * stride + 1 + x * 3;
+                r = (r + raw[i]) & 0xFF;
+                g = (g + raw[i + 1]) & 0xFF;
+                b = (b + raw[i + 2]) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+}